@@ -0,0 +1,264 @@
+package editor;
+
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+import javafx.scene.transform.Scale;
+
+import java.util.BitSet;
+
+/**
+ * Draws the visible text, the cursor and the selection onto a single Canvas instead of keeping a
+ * node per glyph. Changes only mark the screen rows they affect, and render() repaints just those
+ * line bands. A cursor blink repaints the cursor's own rectangle and nothing else.
+ *
+ * Text is colored by the styles of a SyntaxHighlighter, switching the fill only where the style
+ * changes, and new styles repaint just the rows they cover.
+ */
+public class CanvasRenderer implements TextRenderer {
+
+    private static final int CURSOR_WIDTH = 1;
+    private static final Color[] COLORS = new Color[Style.values().length];
+
+    static {
+        for (Style style : Style.values()) {
+            COLORS[style.ordinal()] = Color.rgb(style.getRgb() >> 16, (style.getRgb() >> 8) & 0xff, style.getRgb() & 0xff);
+        }
+    }
+
+    private final Canvas _canvas;
+    private final GraphicsContext _graphics;
+    private final Scale _scale;
+    private final Document _document;
+    private final TextLayout _layout;
+    private final int _marginWidth;
+    private final int _marginHeight;
+
+    private GlyphMetrics _metrics;
+    private SyntaxHighlighter _highlighter;
+    private int _lineHeight;
+    private int _width;
+    private int _height;
+    private double _scrollY;
+
+    private final BitSet _dirtyRows;
+    private boolean _repaintAll;
+
+    private double _cursorX;
+    private double _cursorY;
+    private boolean _cursorVisible;
+    private int _selectionStart;
+    private int _selectionEnd;
+
+    public CanvasRenderer(Canvas canvas, Document document, TextLayout layout, int marginWidth, int marginHeight) {
+        _canvas = canvas;
+        _graphics = canvas.getGraphicsContext2D();
+        _graphics.setTextBaseline(VPos.TOP);
+        _scale = new Scale(1, 1);
+        canvas.getTransforms().add(_scale);
+        _document = document;
+        _layout = layout;
+        _marginWidth = marginWidth;
+        _marginHeight = marginHeight;
+        _dirtyRows = new BitSet();
+        _cursorVisible = true;
+    }
+
+    @Override
+    public void setMetrics(GlyphMetrics metrics, int lineHeight) {
+        _metrics = metrics;
+        _lineHeight = lineHeight;
+        _graphics.setFont(metrics.getFont());
+        _repaintAll = true;
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        _width = width;
+        _height = height;
+        _canvas.setWidth(width);
+        _canvas.setHeight(height);
+        _repaintAll = true;
+    }
+
+    /**
+     * Stretches the pixels already drawn; nothing is repainted until the layout is redone.
+     */
+    @Override
+    public void setScale(double scale) {
+        _scale.setX(scale);
+        _scale.setY(scale);
+    }
+
+    @Override
+    public void setScrollY(double scrollY) {
+        _scrollY = scrollY;
+        _repaintAll = true;
+    }
+
+    @Override
+    public double getScrollY() {
+        return _scrollY;
+    }
+
+    @Override
+    public void reset() {
+        _repaintAll = true;
+    }
+
+    @Override
+    public void linesChanged(TextLayout.Damage damage) {
+        int first = damage.getFirstLine();
+        if (damage.getLineDelta() == 0) {
+            markLines(first, first + damage.getNewLineCount() - 1);
+        } else {
+            markLines(first, Integer.MAX_VALUE);
+        }
+    }
+
+    @Override
+    public void setHighlighter(SyntaxHighlighter highlighter) {
+        _highlighter = highlighter;
+        _repaintAll = true;
+    }
+
+    @Override
+    public void stylesChanged(int start, int end) {
+        markOffsets(start, end);
+    }
+
+    @Override
+    public void setCursor(double x, double y) {
+        markLines(lineAt(_cursorY), lineAt(_cursorY));
+        _cursorX = x;
+        _cursorY = y;
+        _cursorVisible = true;
+        markLines(lineAt(y), lineAt(y));
+    }
+
+    @Override
+    public void setCursorVisible(boolean visible) {
+        _cursorVisible = visible;
+        if (_lineHeight == 0) {
+            return;
+        }
+        paintLine(lineAt(_cursorY), _cursorX, _cursorX + CURSOR_WIDTH);
+    }
+
+    @Override
+    public void setSelection(int start, int end) {
+        int oldStart = _selectionStart;
+        int oldEnd = _selectionEnd;
+        _selectionStart = start;
+        _selectionEnd = end;
+        if (oldStart >= oldEnd || start >= end) {
+            markOffsets(oldStart, oldEnd);
+            markOffsets(start, end);
+        } else {
+            markOffsets(Math.min(oldStart, start), Math.max(oldStart, start));
+            markOffsets(Math.min(oldEnd, end), Math.max(oldEnd, end));
+        }
+    }
+
+    @Override
+    public void render() {
+        if (_lineHeight == 0) {
+            return;
+        }
+        int firstRow = firstVisibleLine();
+        if (_repaintAll) {
+            _graphics.setFill(Color.WHITE);
+            _graphics.fillRect(0, 0, _width, _height);
+            _dirtyRows.set(0, lastVisibleLine() - firstRow + 1);
+            _repaintAll = false;
+        }
+        for (int row = _dirtyRows.nextSetBit(0); row >= 0; row = _dirtyRows.nextSetBit(row + 1)) {
+            paintLine(firstRow + row, 0, _width);
+        }
+        _dirtyRows.clear();
+    }
+
+    /**
+     * Repaints the band of one line between left and right.
+     */
+    private void paintLine(int line, double left, double right) {
+        double y = _marginHeight + line * _lineHeight - _scrollY;
+        _graphics.save();
+        _graphics.beginPath();
+        _graphics.rect(left, y, right - left, _lineHeight);
+        _graphics.clip();
+        _graphics.setFill(Color.WHITE);
+        _graphics.fillRect(left, y, right - left, _lineHeight);
+        if (line < _layout.getLineCount()) {
+            if (_selectionStart < _selectionEnd && _selectionStart < _layout.getLineEnd(line)
+                    && _selectionEnd >= _layout.getLineStart(line)) {
+                int[] span = _layout.getSpan(line, _selectionStart, _selectionEnd, _metrics.advance(' '));
+                _graphics.setFill(Color.LIGHTBLUE);
+                _graphics.fillRect(_marginWidth + span[0], y, span[1] - span[0], _lineHeight);
+            }
+            Color fill = null;
+            Color color = COLORS[Style.PLAIN.ordinal()];
+            int x = _marginWidth;
+            int end = _layout.getLineEnd(line);
+            int styleEnd = 0;
+            Document.CharIterator iterator = _document.iterator(_layout.getLineStart(line));
+            while (iterator.getIndex() < end && x < right) {
+                int offset = iterator.getIndex();
+                char c = iterator.next();
+                int advance = _layout.advance(c);
+                if (x + advance >= left && c != '\n' && c != ' ') {
+                    if (_highlighter != null && offset >= styleEnd) {
+                        color = COLORS[_highlighter.getStyle(offset).ordinal()];
+                        styleEnd = _highlighter.getStyleEnd(offset);
+                    }
+                    if (color != fill) {
+                        fill = color;
+                        _graphics.setFill(fill);
+                    }
+                    _graphics.fillText(String.valueOf(c), x, y);
+                }
+                x += advance;
+            }
+        }
+        if (_cursorVisible && lineAt(_cursorY) == line) {
+            _graphics.setFill(Color.BLACK);
+            _graphics.fillRect(_cursorX, y, CURSOR_WIDTH, _lineHeight);
+        }
+        _graphics.restore();
+    }
+
+    private void markOffsets(int start, int end) {
+        if (start >= end) {
+            return;
+        }
+        markLines(_layout.getLineOfOffset(start), _layout.getLineOfOffset(end));
+    }
+
+    /**
+     * Marks the rows of lines first through last that are on screen.
+     */
+    private void markLines(int first, int last) {
+        if (_lineHeight == 0) {
+            return;
+        }
+        int firstRow = firstVisibleLine();
+        int from = Math.max(first, firstRow);
+        int to = Math.min(last, lastVisibleLine());
+        if (from <= to) {
+            _dirtyRows.set(from - firstRow, to - firstRow + 1);
+        }
+    }
+
+    private int lineAt(double y) {
+        return (int) ((y - _marginHeight) / _lineHeight);
+    }
+
+    private int firstVisibleLine() {
+        return Math.max(0, lineAt(_scrollY));
+    }
+
+    private int lastVisibleLine() {
+        return lineAt(_scrollY + _height);
+    }
+}
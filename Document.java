@@ -0,0 +1,71 @@
+package editor;
+
+/**
+ * Text storage behind the editor. Offsets are char indices from the start of the document,
+ * and every edit is expressed as an insert or delete at an offset.
+ */
+public interface Document extends CharSequence {
+
+    /**
+     * Inserts text so that its first character ends up at offset.
+     * @param offset position between 0 and length()
+     * @param text characters to insert
+     */
+    void insert(int offset, CharSequence text);
+
+    /**
+     * Removes length characters starting at offset.
+     * @param offset first character to remove
+     * @param length number of characters to remove
+     */
+    void delete(int offset, int length);
+
+    /**
+     * Adds chars[start, start + length) to the end of the document. The document may keep the
+     * array instead of copying it, so the caller must not change it afterwards.
+     */
+    void append(char[] chars, int start, int length);
+
+    /**
+     * Copies the characters in [start, end) into dst, like String.getChars.
+     */
+    void getChars(int start, int end, char[] dst, int dstBegin);
+
+    /**
+     * Returns an iterator positioned so that the first call to next() returns the character at
+     * offset.
+     */
+    CharIterator iterator(int offset);
+
+    /**
+     * Returns the text as it is now. Later edits don't show through, and the snapshot may be read
+     * from another thread while the document keeps changing.
+     */
+    Snapshot snapshot();
+
+    /**
+     * Immutable copy of a document's text, usually sharing storage with the document.
+     */
+    interface Snapshot extends CharSequence {
+
+        /**
+         * Copies the characters in [start, end) into dst, like String.getChars.
+         */
+        void getChars(int start, int end, char[] dst, int dstBegin);
+    }
+
+    /**
+     * Forward iterator over the characters of a document.
+     */
+    interface CharIterator {
+
+        boolean hasNext();
+
+        char next();
+
+        /**
+         * @return offset of the character the next call to next() returns
+         */
+        int getIndex();
+    }
+}
@@ -0,0 +1,155 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads a file on a background thread and hands its text over in chunks through an executor,
+ * the FX thread in the editor, so the first screenful can be laid out and drawn while the rest of
+ * the file is still being read.
+ *
+ * Bytes are read through a FileChannel in large blocks, or memory-mapped when the file is big,
+ * and decoded with an explicit charset. Every chunk is a freshly allocated char array that the
+ * listener may keep as is; the loader never touches it again after handing it over. The last
+ * chunk is cut to its exact length, so a small file holds no more than its text.
+ */
+public class DocumentLoader {
+
+    private static final int FIRST_CHUNK_CHARS = 8 * 1024;
+    private static final int CHUNK_CHARS = 256 * 1024;
+    private static final int READ_BYTES = 256 * 1024;
+    private static final long MAP_THRESHOLD = 16L * 1024 * 1024;
+
+    /**
+     * Called through the executor, in file order.
+     */
+    public interface Listener {
+        void chunkLoaded(char[] chars, int length);
+
+        void loadFinished();
+
+        void loadFailed(IOException e);
+    }
+
+    private final File _file;
+    private final Charset _charset;
+    private final Executor _callbacks;
+    private final Listener _listener;
+
+    public DocumentLoader(File file, Charset charset, Executor callbacks, Listener listener) {
+        _file = file;
+        _charset = charset;
+        _callbacks = callbacks;
+        _listener = listener;
+    }
+
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                    _callbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            _listener.loadFinished();
+                        }
+                    });
+                } catch (final IOException e) {
+                    _callbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            _listener.loadFailed(e);
+                        }
+                    });
+                }
+            }
+        }, "document-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void load() throws IOException {
+        try (FileChannel channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            CharsetDecoder decoder = _charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer out = CharBuffer.allocate(FIRST_CHUNK_CHARS);
+            if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+                out = decode(decoder, channel.map(FileChannel.MapMode.READ_ONLY, 0, size), out, true);
+            } else {
+                ByteBuffer in = ByteBuffer.allocateDirect(READ_BYTES);
+                boolean endOfInput = false;
+                while (!endOfInput) {
+                    endOfInput = channel.read(in) < 0;
+                    in.flip();
+                    out = decode(decoder, in, out, endOfInput);
+                    // Keeps the bytes of a character cut off at the end of this block.
+                    in.compact();
+                }
+            }
+            while (decoder.flush(out) == CoderResult.OVERFLOW) {
+                out = publish(out);
+            }
+            publishLast(out);
+        }
+    }
+
+    private CharBuffer decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out, boolean endOfInput)
+            throws CharacterCodingException {
+        while (true) {
+            CoderResult result = decoder.decode(in, out, endOfInput);
+            if (result.isOverflow()) {
+                out = publish(out);
+            } else if (result.isUnderflow()) {
+                return out;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    /**
+     * Hands the decoded characters to the listener and returns an empty buffer for the next chunk.
+     */
+    private CharBuffer publish(CharBuffer out) {
+        hand(out.array(), out.position());
+        return CharBuffer.allocate(CHUNK_CHARS);
+    }
+
+    /**
+     * Hands over the last chunk, copied into an array of its own length if it didn't fill its
+     * buffer, since the listener keeps the array it is given.
+     */
+    private void publishLast(CharBuffer out) {
+        char[] chars = out.array();
+        int length = out.position();
+        if (length < chars.length) {
+            chars = Arrays.copyOf(chars, length);
+        }
+        hand(chars, length);
+    }
+
+    private void hand(final char[] chars, final int length) {
+        if (length > 0) {
+            _callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.chunkLoaded(chars, length);
+                }
+            });
+        }
+    }
+}
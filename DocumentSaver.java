@@ -0,0 +1,193 @@
+package editor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes document snapshots to disk on a background thread. The text goes to a temporary file
+ * next to the target, which is forced to disk and then renamed over the target, so a crash in
+ * the middle of a save leaves either the old file or the new one, never half of each.
+ *
+ * Saves run one at a time in the order they were asked for. The thread is not a daemon, so a
+ * save that is still running when the window closes gets to finish.
+ */
+public class DocumentSaver {
+
+    private static final int CHUNK_CHARS = 64 * 1024;
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+    /**
+     * Called through the callback executor once a save is done.
+     */
+    public interface Listener {
+        void saved(File file);
+
+        void saveFailed(File file, IOException e);
+    }
+
+    private final ExecutorService _executor;
+    private final Executor _callbacks;
+
+    /**
+     * @param callbacks runs the listeners, on the FX thread in the editor
+     */
+    public DocumentSaver(Executor callbacks) {
+        _executor = Executors.newSingleThreadExecutor();
+        _callbacks = callbacks;
+    }
+
+    /**
+     * Queues a save of text into file and returns right away.
+     */
+    public void save(final File file, final Charset charset, final Document.Snapshot text, final Listener listener) {
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(file.getAbsoluteFile().toPath(), charset, text);
+                    _callbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.saved(file);
+                        }
+                    });
+                } catch (final IOException e) {
+                    _callbacks.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.saveFailed(file, e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets queued saves finish, then stops the thread.
+     */
+    public void shutdown() {
+        _executor.shutdown();
+    }
+
+    private static void write(Path target, Charset charset, Document.Snapshot text) throws IOException {
+        Path directory = target.getParent();
+        Path temp = createTemp(directory, target);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                encode(channel, charset, text);
+                channel.force(true);
+            }
+            if (Files.exists(target)) {
+                copyPermissions(target, temp);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        syncDirectory(directory);
+    }
+
+    private static void encode(FileChannel channel, Charset charset, Document.Snapshot text) throws IOException {
+        CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] chars = new char[CHUNK_CHARS];
+        ByteBuffer out = ByteBuffer.allocateDirect(CHUNK_BYTES);
+        int length = text.length();
+        CharBuffer in = CharBuffer.wrap(chars, 0, 0);
+        int start = 0;
+        while (true) {
+            // Keeps a high surrogate the encoder left behind at the end of the last chunk.
+            in.compact();
+            int count = Math.min(length - start, in.remaining());
+            text.getChars(start, start + count, chars, in.position());
+            in.position(in.position() + count);
+            start += count;
+            in.flip();
+            boolean endOfInput = start == length;
+            CoderResult result;
+            while ((result = encoder.encode(in, out, endOfInput)).isOverflow()) {
+                drain(channel, out);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (endOfInput) {
+                break;
+            }
+        }
+        while (encoder.flush(out).isOverflow()) {
+            drain(channel, out);
+        }
+        drain(channel, out);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Creates an empty file next to target to write into. Unlike Files.createTempFile, which only
+     * lets the owner read it, the file gets the permissions the umask gives a new file, so saving a
+     * file that doesn't exist yet leaves it as readable as any other new file.
+     */
+    private static Path createTemp(Path directory, Path target) throws IOException {
+        while (true) {
+            String name = "." + target.getFileName() + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp";
+            Path temp = directory.resolve(name);
+            try {
+                Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+                return temp;
+            } catch (FileAlreadyExistsException e) {
+                // Someone else took the name; try another.
+            }
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException | IOException e) {
+            // Not a POSIX file system; the new file keeps the default permissions.
+        }
+    }
+
+    /**
+     * Makes the rename itself durable. Not every platform can open a directory, so this is best
+     * effort.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The file contents are already on disk.
+        }
+    }
+}
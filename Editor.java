@@ -1,224 +1,231 @@
 package editor;
 
+import javafx.animation.AnimationTimer;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.event.EventType;
 import javafx.geometry.Orientation;
-import javafx.geometry.VPos;
 import javafx.scene.Group;
 import javafx.scene.Scene;
+import javafx.scene.canvas.Canvas;
 import javafx.scene.control.ScrollBar;
+import javafx.scene.control.TextInputDialog;
 import javafx.scene.input.*;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Line;
-import javafx.scene.shape.Rectangle;
-import javafx.scene.text.Font;
-import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import javafx.util.Duration;
-import javafx.scene.Cursor;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 
 public class Editor extends Application {
 
-    private static File editFile;
+    private int windowHeight = 500;
+    private int windowWidth = 500;
 
-    private static int WINDOW_HEIGHT = 500;
-    private static int WINDOW_WIDTH = 500;
-
-    private final Rectangle cursor = new Rectangle(0, 0);
-
-    private ArrayList<TextObject> _contents;
-    private UndoList _addedCharacters;
+    private final ArrayList<OpenFile> _files = new ArrayList<>();
+    private OpenFile _current;
+    private Document _document;
+    private TextLayout _layout;
+    private TextRenderer _renderer;
+    private UndoJournal _undoJournal;
 
     private static final int MARGIN_WIDTH = 5;
     private static final int MARGIN_HEIGHT = 0;
     private static final int DEFAULT_FONT_SIZE = 12;
+    private static final int ZOOM_SETTLE_MILLIS = 150;
 
     private int fontSize = DEFAULT_FONT_SIZE;
+    private int zoomSize = DEFAULT_FONT_SIZE;
+    private Timeline zoomTimeline;
     private String fontName = "Verdana";
+    private GlyphMetrics _metrics = GlyphMetrics.get(fontName, fontSize);
 
     private int currX = MARGIN_WIDTH;
     private int currY = MARGIN_HEIGHT;
 
     private Group _root;
+    private ScrollBar _scrollBar;
+    private int scrollBarWidth;
     private int contentsIndex;
 
-    private int totalLines = 1;
-
     private int currLine = 1;
 
-    private HashMap<Integer, TextObject> firstLetterInLine;
-    private ArrayList<Rectangle> highlights;
-    private String highlightedText;
-    private int highlightStartIndex;
-    private int highlightEndIndex;
+    private Selection _selection;
+
+    private boolean useCanvas;
+    private long undoLimit = 64L * 1024 * 1024;
+    private Charset charset = StandardCharsets.UTF_8;
+    private final Executor _callbacks = new FxExecutor();
+    private final DocumentSaver _saver = new DocumentSaver(_callbacks);
+    private final ScheduledExecutorService _journalExecutor = RecoveryJournal.newExecutor();
+    private final ExecutorService _highlightExecutor = SyntaxHighlighter.newExecutor();
+    private final ExecutorService _indexExecutor = TrigramIndex.newExecutor();
+    private SyntaxHighlighter _highlighter;
+    private Stage _stage;
+    private FrameTimer frameTimer;
+
+    private PulseTimer pulseTimer;
+    private boolean formatPending;
+    private boolean cursorPending;
+    private int damageOffset = -1;
+    private int damageRemoved;
+    private int damageInserted;
+
+    private SearchEngine _search;
+    private String searchText = "";
+    private String replaceText = "";
+    private boolean matchCase;
+    private boolean useRegex;
+    private TrigramIndex _index;
+    private long indexThreshold = 8L * 1024 * 1024;
+
+    private final EditorMetrics _editorMetrics = new EditorMetrics();
+    private long keystrokeStart;
+    private int hitTests;
+
+    /**
+     * One of the files the editor has open. Only the one on screen has a layout and a renderer;
+     * the others keep their text, history and caret, and are read from disk the first time they
+     * are shown.
+     */
+    private class OpenFile {
+        final File file;
+        final Document document = new PieceTable();
+        final UndoJournal undoJournal = new UndoJournal(undoLimit);
+        final Selection selection = new Selection();
+        RecoveryJournal journal;
+        TrigramIndex index;
+        boolean opened;
+        boolean loading;
+        int pendingSaves;
+        int caret;
+        double scrollY;
+        String status;
+
+        OpenFile(File file) {
+            this.file = file;
+        }
+    }
 
     private class KeyEventHandler implements EventHandler<KeyEvent> {
 
-        public KeyEventHandler(Group root) {
-            _root = root;
-            _contents = new ArrayList<>();
-            _addedCharacters = new UndoList();
-            firstLetterInLine = new HashMap<>();
-            contentsIndex = 0;
-            cursor.setFill(Color.BLACK);
-            cursor.setHeight(fontSize);
-            cursor.setWidth(1);
-            cursor.setX(MARGIN_WIDTH);
-            highlights = new ArrayList<>();
+        public KeyEventHandler() {
             makeCursorBlink();
-            highlightedText = "";
         }
 
-        public KeyEventHandler(Group root, String contents) {
-            this(root);
-            for (char c : contents.toCharArray()) {
-                if (c == '\n') {
-                    setNewLine();
-                } else {
-                    setCharacter(c);
+        @Override
+        public void handle(KeyEvent keyEvent) {
+            if (keyEvent.isShortcutDown() && keyEvent.getEventType() == KeyEvent.KEY_PRESSED
+                    && (keyEvent.getCode() == KeyCode.PAGE_DOWN || keyEvent.getCode() == KeyCode.PAGE_UP)) {
+                if (_files.size() > 1) {
+                    int step = keyEvent.getCode() == KeyCode.PAGE_DOWN ? 1 : _files.size() - 1;
+                    show(_files.get((_files.indexOf(_current) + step) % _files.size()));
                 }
+                return;
             }
-            contentsIndex = 0;
-            currX = MARGIN_WIDTH;
-            currY = 0;
-            format();
-
-            /**
-            for (int l : firstLetterInLine.keySet()) {
-                TextObject temp = firstLetterInLine.get(l);
-                System.out.println(temp.getText() + " x: " + temp.getX() + " y: " + temp.getY() + " line: " + temp.getLine());
+            if (_current.loading) {
+                // Edits would race with the chunks still being appended.
+                return;
             }
-            **/
-        }
-
-        @Override
-        public void handle(KeyEvent keyEvent) {
             if (keyEvent.isShortcutDown()) {
                 KeyCode code = keyEvent.getCode();
-                if (code == KeyCode.S) {
-                    try {
-                        FileWriter writer = new FileWriter(editFile.getName());
-                        for (TextObject text : _contents) {
-                            writer.write(text.getText());
-                        }
-                        writer.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                if (keyEvent.isAltDown() && code == KeyCode.C) {
+                    matchCase = !matchCase;
+                    _search = null;
+                } else if (keyEvent.isAltDown() && code == KeyCode.R) {
+                    useRegex = !useRegex;
+                    _search = null;
+                } else if (code == KeyCode.S) {
+                    save();
                 } else if (code == KeyCode.Z) {
                     undo();
                 } else if (code == KeyCode.Y) {
                     redo();
                 } else if (code == KeyCode.PLUS || code == KeyCode.EQUALS) {
-                    resize(fontSize + 4);
+                    resize(zoomSize + 4);
                 } else if (code == KeyCode.MINUS) {
-                    if (fontSize - 4 < 1) {
+                    if (zoomSize - 4 < 1) {
                         return;
                     }
-                    resize(fontSize - 4);
+                    resize(zoomSize - 4);
                 } else if (code == KeyCode.C) {
                     copy();
                 } else if (code == KeyCode.V) {
                     paste();
+                } else if (code == KeyCode.F) {
+                    find();
+                } else if (code == KeyCode.H) {
+                    replaceAll();
                 }
             }
             else if (keyEvent.getEventType() == KeyEvent.KEY_TYPED) {
+                startKeystroke();
                 String characterTyped = keyEvent.getCharacter();
                 if (characterTyped.length() > 0 && characterTyped.charAt(0) != 8) {
-                    if (!highlightedText.equals("")) {
-                        backspace();
-                    }
-                    TextObject addText = setCharacter(characterTyped.charAt(0));
-                    UndoList nextUndo = new UndoList(contentsIndex - 1, addText, false);
-                    _addedCharacters.setTail(nextUndo);
-                    if (_addedCharacters.getTail() != null) {
-                        nextUndo.setPrev(_addedCharacters);
-                        _addedCharacters = nextUndo;
+                    if (_selection.isEmpty()) {
+                        char character = setCharacter(characterTyped.charAt(0));
+                        _undoJournal.record(contentsIndex - 1, "", String.valueOf(character));
+                    } else {
+                        replaceSelection(characterTyped.charAt(0) == 13 ? "\n" : characterTyped.substring(0, 1));
                     }
                     keyEvent.consume();
                 }
             } else if (keyEvent.getEventType() == KeyEvent.KEY_PRESSED) {
+                startKeystroke();
                 KeyCode code = keyEvent.getCode();
                 if(code == KeyCode.BACK_SPACE){
                     backspace();
+                } else if (code == KeyCode.F3) {
+                    findNext(!keyEvent.isShiftDown());
                 } else if(code == KeyCode.UP) {
-                    if (currY > 0) {
-                        TextObject text = findNearestText(currX, currY - fontSize);
-                        currX = (int) text.getX();
-                        currY = (int) text.getY();
-                        currLine = text.getLine();
-                        contentsIndex = text.getIndex();
+                    flush();
+                    if (currLine > 1) {
+                        contentsIndex = findNearestText(currX, currY - fontSize);
                     } else {
-                        currX = MARGIN_WIDTH;
                         contentsIndex = 0;
                     }
                 } else if (code == KeyCode.DOWN){
-                    if (_contents.size() == 0) {
-                        return;
-                    }
-                    TextObject lastText = _contents.get(_contents.size() - 1);
-                    int newY = currY + fontSize;
-                    if (newY <= lastText.getY()) {
-                        TextObject text = findNearestText(currX, currY + fontSize);
-                        currX = (int) text.getX();
-                        currY = (int) text.getY();
-                        currLine = text.getLine();
-                        contentsIndex = text.getIndex();
+                    flush();
+                    if (currLine < _layout.getLineCount()) {
+                        contentsIndex = findNearestText(currX, currY + fontSize);
                     } else {
-                        currX = (int) (lastText.getX() + lastText.getWidth() + 0.5);
-                        contentsIndex = _contents.size() - 1;
+                        contentsIndex = _document.length();
                     }
                 } else if (code == KeyCode.LEFT) {
                     if (contentsIndex > 0) {
-                        TextObject temp = _contents.get(contentsIndex - 1);
-                        if (temp.getText().equals("\n") && contentsIndex > 1) {
-                            temp = _contents.get(contentsIndex - 2);
-                            if (temp.getText().equals(" ")) {
-                                currX = (int) temp.getX();
-                            } else {
-                                currX = (int) (temp.getX() + temp.getWidth() + 0.5);
-                                contentsIndex = temp.getIndex() + 1;
-                            }
-                            currY -= fontSize;
-                        } else {
-                            currX = (int) temp.getX();
-                        }
                         contentsIndex -= 1;
                     }
                 } else if (code == KeyCode.RIGHT) {
-                    if (contentsIndex < _contents.size()) {
-                        TextObject temp = _contents.get(contentsIndex);
-                        if (temp.getText().equals("\n")) {
-                            currX = MARGIN_WIDTH;
-                            currY += fontSize;
-                        } else {
-                            currX += temp.getWidth() + 0.5;
-                            currY = (int) temp.getY();
-                        }
+                    if (contentsIndex < _document.length()) {
                         contentsIndex += 1;
                     }
                 }
-            }
-            format();
-            if (contentsIndex > 0 && contentsIndex < _contents.size()) {
-                TextObject currText = _contents.get(contentsIndex);
-                if (!currText.getText().equals("\n") && (currText.getY() != currY || currText.getX() != currX)) {
-                    currX = (int) (currText.getX() + currText.getWidth() + 0.5);
-                    currY = (int) currText.getY();
+                if (code == KeyCode.UP || code == KeyCode.DOWN || code == KeyCode.LEFT || code == KeyCode.RIGHT) {
+                    _undoJournal.breakCoalescing();
                 }
             }
-            setCursor(currX, currY);
+            cursorPending = true;
+            requestPulse();
         }
     }
 
@@ -230,17 +237,12 @@ public class Editor extends Application {
 
         CursorBlinkEventHandler() {
             isBlack = true;
-            cursor.setFill(Color.BLACK);
         }
 
         private void blinking() {
-            if (isBlack) {
-                cursor.setFill(Color.WHITE);
-                isBlack = false;
-            } else {
-                cursor.setFill(Color.BLACK);
-                isBlack = true;
-            }
+            flushLayout();
+            isBlack = !isBlack;
+            _renderer.setCursorVisible(isBlack);
         }
 
         @Override
@@ -249,516 +251,811 @@ public class Editor extends Application {
         }
     }
 
+    private class ZoomEventHandler implements EventHandler<ActionEvent> {
+
+        @Override
+        public void handle(ActionEvent actionEvent) {
+            applyZoom();
+        }
+    }
+
     private class MouseEventHandler implements EventHandler<MouseEvent> {
 
         @Override
         public void handle(MouseEvent mouseEvent) {
-            if (_contents.size() == 0) {
+            if (_document.length() == 0) {
                 return;
             }
-            if (highlightedText.equals("")) {
+            flush();
+            if (_selection.isEmpty()) {
                 setCursor(currX, currY);
             }
-            double mousePressedX = mouseEvent.getX();
-            double mousePressedY = mouseEvent.getY();
+            if (mouseEvent.getX() >= windowWidth - scrollBarWidth) {
+                return;
+            }
             EventType eventType = mouseEvent.getEventType();
-            TextObject text = findNearestText(mousePressedX, mousePressedY);
-            mousePressedX = text.getX();
-            mousePressedY = text.getY();
-            highlightedText = "";
-            highlightEndIndex = -1;
-            highlightStartIndex = -1;
+            hitTests = 0;
+            int index = findNearestText(mouseEvent.getX(), mouseEvent.getY() + _renderer.getScrollY());
             if (eventType == MouseEvent.MOUSE_PRESSED) {
-                currX = (int) text.getX();
-                currY = (int) text.getY();
-                currLine = text.getLine();
-                contentsIndex = text.getIndex();
-                _root.getChildren().removeAll(highlights);
-                highlights.clear();
-                setCursor(currX, currY);
+                contentsIndex = index;
+                _undoJournal.breakCoalescing();
+                _selection.clear(index);
+                _renderer.setSelection(0, 0);
+                cursorPending = true;
             } else if (eventType == MouseEvent.MOUSE_DRAGGED) {
-                _root.getChildren().remove(cursor);
-                _root.getChildren().removeAll(highlights);
-                highlights.clear();
-                Rectangle newHighlight;
-                double yDifference = currY - mousePressedY;
-                if (yDifference >= fontSize) {
-                    int x = (int) text.getX();
-                    int startY = (int) text.getY();
-                    int endY = currY;
-                    TextObject startText = _contents.get(text.getIndex());
-                    TextObject endText;
-                    while (startY != endY) {
-                        endText = findNearestText(WINDOW_WIDTH, startY);
-                        newHighlight = setRectangle(x, startY, endText.getX() - startText.getX(), fontSize);
-                        if (endText.getText().equals("\n") || startText.getText().equals("\n")) {
-                            newHighlight.setWidth(TextObject.spaceCharWidth());
-                        } else if (endText.getIndex() + 1 < _contents.size() && _contents.get(endText.getIndex() + 1).getText().equals("\n")) {
-                            newHighlight.setWidth(newHighlight.getWidth() + TextObject.spaceCharWidth());
-                        }
-                        startY += fontSize;
-                        startText = findNearestText(MARGIN_WIDTH, startY);
-                        x = MARGIN_WIDTH;
-                    }
-                    endText = _contents.get(contentsIndex - 1);
-                    setRectangle(MARGIN_WIDTH, endY, endText.getX() + endText.getWidth() - MARGIN_WIDTH, fontSize);
-                } else if (Math.abs(yDifference) >= fontSize) {
-                    int x = currX;
-                    int startY = currY;
-                    int endY = (int) text.getY();
-                    if (contentsIndex >= _contents.size()) {
-                        setRectangle(text.getX(), text.getY(), TextObject.spaceCharWidth(), fontSize);
-                    } else {
-                        TextObject startText = _contents.get(contentsIndex);
-                        TextObject endText;
-                        while (startY != endY) {
-                            endText = findNearestText(WINDOW_WIDTH, startY);
-                            newHighlight = setRectangle(x, startY, endText.getX() - startText.getX(), fontSize);
-                            if (endText.getText().equals("\n") || startText.getText().equals("\n")) {
-                                newHighlight.setWidth(TextObject.spaceCharWidth());
-                            }
-                            else if (endText.getIndex() + 1 < _contents.size() && _contents.get(endText.getIndex() + 1).getText().equals("\n")) {
-                                newHighlight.setWidth(newHighlight.getWidth() + TextObject.spaceCharWidth());
-                            }
-                            startY += fontSize;
-                            startText = findNearestText(MARGIN_WIDTH, startY);
-                            x = MARGIN_WIDTH;
-                        }
-                        endText = findNearestText(text.getX(), endY);
-                        newHighlight = setRectangle(MARGIN_WIDTH, endY, text.getX() - MARGIN_WIDTH, fontSize);
-                        if (endText.getText().equals("\n")) {
-                            newHighlight.setWidth(TextObject.spaceCharWidth());
-                        } else if ((endText.getIndex() + 1 < _contents.size() && _contents.get(endText.getIndex() + 1).getText().equals("\n"))
-                                || endText.getIndex() >= _contents.size() - 1) {
-                            newHighlight.setWidth(newHighlight.getWidth() + TextObject.spaceCharWidth());
-                        }
-                    }
-                } else {
-                    if (mousePressedX < currX) {
-                        newHighlight = setRectangle(text.getX(), currY, Math.abs(text.getX() - currX), fontSize);
-                    } else {
-                        newHighlight = setRectangle(currX, currY, Math.abs(text.getX() - currX), fontSize);
-                    }
-                    if (text.getText().equals("\n")) {
-                        newHighlight.setWidth(TextObject.spaceCharWidth());
-                    }
-                }
-                _root.getChildren().addAll(0, highlights);
+                _selection.setHead(index);
+                _renderer.setSelection(_selection.getStart(), _selection.getEnd());
             } else if (eventType == MouseEvent.MOUSE_RELEASED) {
-                highlightStartIndex = Math.min(text.getIndex(), contentsIndex);
-                highlightEndIndex = Math.max(text.getIndex(), contentsIndex);
-                contentsIndex = highlightStartIndex;
-                for (int i = highlightStartIndex; i < highlightEndIndex; i += 1) {
-                    TextObject temp = _contents.get(i);
-                    if (temp.getText() != null) {
-                        highlightedText += temp.getText();
-                    }
-                }
+                _selection.setHead(index);
+                contentsIndex = _selection.getStart();
             }
+            _editorMetrics.mouseEvent(hitTests);
+            requestPulse();
         }
+    }
 
-        public Rectangle setRectangle(double x, double y, double width, double height) {
-            Rectangle newHighlight = new Rectangle(x, y, width, height);
-            highlights.add(newHighlight);
-            newHighlight.setFill(Color.LIGHTBLUE);
-            newHighlight.toBack();
-            return newHighlight;
+    /**
+     * Appends each chunk the loader decodes and lays out only the new text, so the first screen is
+     * drawn as soon as its chunk arrives.
+     */
+    private class LoadListener implements DocumentLoader.Listener {
+        private final OpenFile _file;
+        private final long _start;
+
+        public LoadListener(OpenFile file) {
+            _file = file;
+            _start = System.nanoTime();
         }
-    }
 
-    private class UndoList {
-        private Node _node;
-        private UndoList _prev;
-        private UndoList _tail;
+        @Override
+        public void chunkLoaded(char[] chars, int length) {
+            int offset = _file.document.length();
+            _file.document.append(chars, 0, length);
+            // A file that was switched away from is laid out in one go when it is shown again.
+            if (_file == _current) {
+                reflow(offset, 0, length);
+                if (offset == 0) {
+                    cursorPending = true;
+                }
+            }
+        }
 
-        public UndoList() {
+        @Override
+        public void loadFinished() {
+            _file.loading = false;
+            _editorMetrics.file(false, _file.file.length(), System.nanoTime() - _start);
+            recover(_file);
+            if (_file == _current) {
+                updateIndex();
+            }
+        }
 
+        @Override
+        public void loadFailed(IOException e) {
+            _file.loading = false;
+            System.out.println("Unable to read " + _file.file + "; exception was: " + e);
         }
+    }
+
+    private class IndexListener implements TrigramIndex.Listener {
 
-        public UndoList(int index, TextObject text, boolean deleted) {
-            _node = new Node(index, text, deleted);
+        @Override
+        public void indexBuilt(TrigramIndex index) {
+            _editorMetrics.index(index.getBuildTime(), index.getMemoryUsage());
         }
+    }
 
-        public UndoList(int index, ArrayList<TextObject> text, boolean deleted) {
+    private class HighlightListener implements SyntaxHighlighter.Listener {
 
+        @Override
+        public void stylesChanged(int start, int end) {
+            // Styles are in offsets of the document as it is now, so the layout has to catch up.
+            flushLayout();
+            _renderer.stylesChanged(start, end);
+            requestPulse();
         }
+    }
+
+    private class JournalListener implements RecoveryJournal.Listener {
+        private final OpenFile _file;
 
-        public Node getNode() {
-            return _node;
+        public JournalListener(OpenFile file) {
+            _file = file;
         }
 
-        public UndoList getPrev() {
-            return _prev;
+        @Override
+        public void journalFailed(IOException e) {
+            setStatus(_file, "journal failed");
+            System.out.println("Unable to write the recovery journal for " + _file.file + "; exception was: " + e);
         }
+    }
+
+    private class SaveListener implements DocumentSaver.Listener {
+        private final OpenFile _file;
+        private final long _checkpoint;
+        private final long _start;
 
-        public UndoList getTail() {
-            return _tail;
+        public SaveListener(OpenFile file, long checkpoint) {
+            _file = file;
+            _checkpoint = checkpoint;
+            _start = System.nanoTime();
         }
 
-        public void setNode(Node node) {
-            _node = node;
+        @Override
+        public void saved(File file) {
+            _editorMetrics.file(true, file.length(), System.nanoTime() - _start);
+            _file.pendingSaves -= 1;
+            if (_file.pendingSaves == 0) {
+                setStatus(_file, null);
+                // Only once no other save can change the file under the journal.
+                if (_file.journal != null) {
+                    _file.journal.saved(_checkpoint);
+                }
+            }
         }
 
-        public void setPrev(UndoList prev) {
-            _prev = prev;
+        @Override
+        public void saveFailed(File file, IOException e) {
+            _file.pendingSaves -= 1;
+            setStatus(_file, "save failed");
+            System.out.println("Unable to save " + file + "; exception was: " + e);
         }
+    }
 
-        public void setTail(UndoList tail) {
-            _tail = tail;
+    /**
+     * Delivers the loader's and the saver's callbacks on the FX thread.
+     */
+    private static class FxExecutor implements Executor {
+
+        @Override
+        public void execute(Runnable command) {
+            Platform.runLater(command);
         }
+    }
 
-        private class Node {
-            private int _index;
-            private TextObject _text;
-            private boolean _deleted;
+    /**
+     * Runs layout and drawing once per pulse. Events only change the document and queue what has
+     * to be redone, so a burst of keystrokes or a drag-resize within one frame costs one layout.
+     */
+    private class PulseTimer extends AnimationTimer {
+        private boolean _scheduled;
 
-            public Node (int index, TextObject text, boolean deleted) {
-                _index = index;
-                _text = text;
-                _deleted = deleted;
+        public void schedule() {
+            if (!_scheduled) {
+                _scheduled = true;
+                start();
             }
+        }
 
-            public int getIndex() {
-                return _index;
+        @Override
+        public void handle(long now) {
+            flush();
+            _renderer.render();
+            if (keystrokeStart != 0) {
+                _editorMetrics.keystroke(System.nanoTime() - keystrokeStart);
+                keystrokeStart = 0;
             }
+            // Stops only now, so that scrolling the caret into view above doesn't ask for another
+            // pulse.
+            _scheduled = false;
+            stop();
+        }
+    }
 
-            public TextObject getText() {
-                return _text;
+    /**
+     * Records the time between pulses, so the two renderers can be compared on the same file.
+     */
+    private class FrameTimer extends AnimationTimer {
+        private final long[] _frames = new long[1 << 16];
+        private int _count;
+        private long _last;
+
+        @Override
+        public void handle(long now) {
+            if (_last != 0) {
+                _frames[_count % _frames.length] = now - _last;
+                _count += 1;
             }
+            _last = now;
+        }
 
-            public boolean isDeleted() {
-                return _deleted;
+        public void printSummary() {
+            int samples = Math.min(_count, _frames.length);
+            if (samples == 0) {
+                return;
             }
+            long[] sorted = Arrays.copyOf(_frames, samples);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long frame : sorted) {
+                total += frame;
+            }
+            System.out.printf("%s renderer: %d frames, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    useCanvas ? "canvas" : "node", samples, total / (double) samples / 1e6,
+                    sorted[samples / 2] / 1e6, sorted[(int) (samples * 0.99)] / 1e6, sorted[samples - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Notes when the first key event since the last pulse came in, for the keystroke latency.
+     */
+    private void startKeystroke() {
+        if (keystrokeStart == 0) {
+            keystrokeStart = System.nanoTime();
         }
     }
 
     private void backspace() {
-        if (highlightedText.equals("")) {
+        if (_selection.isEmpty()) {
             if (contentsIndex <= 0) {
                 return;
             }
-            TextObject deleteText = _contents.remove(contentsIndex - 1);
-            if (deleteText.getText().equals("\n")) {
-                if (_contents.size() > 1) {
-                    TextObject temp = _contents.get(contentsIndex - 2);
-                    currX = (int) (temp.getX() + temp.getWidth() + 0.5);
-                    currY -= fontSize;
-                } else {
-                    currX = MARGIN_WIDTH;
-                    currY = 0;
-                }
-            } else {
-                currX = (int) deleteText.getX();
-                currY = (int) deleteText.getY();
-            }
             contentsIndex -= 1;
-            UndoList nextUndo = new UndoList(contentsIndex, deleteText, true);
-            _addedCharacters.setTail(nextUndo);
-            if (_addedCharacters.getTail() != null) {
-                nextUndo.setPrev(_addedCharacters);
-                _addedCharacters = nextUndo;
-            }
-            _root.getChildren().remove(deleteText.getTextObject());
+            char removed = removeCharacter(contentsIndex);
+            _undoJournal.record(contentsIndex, String.valueOf(removed), "");
         } else {
-            TextObject firstText = _contents.get(highlightStartIndex);
-            TextObject undoText = new TextObject((int) firstText.getX(), (int) firstText.getY(), highlightedText, firstText.getIndex());
-            for (int i = highlightEndIndex; i >= highlightStartIndex; i -= 1) {
-                TextObject deleteText = _contents.remove(i);
-                if (deleteText.getText().equals("\n")) {
-                    if (_contents.size() > 1) {
-                        TextObject temp = _contents.get(i - 2);
-                        currX = (int) (temp.getX() + temp.getWidth() + 0.5);
-                        currY -= fontSize;
-                    } else {
-                        currX = MARGIN_WIDTH;
-                        currY = 0;
-                    }
-                } else {
-                    currX = (int) deleteText.getX();
-                    currY = (int) deleteText.getY();
-                }
-                _root.getChildren().remove(deleteText.getTextObject());
-            }
-            UndoList nextUndo = new UndoList(contentsIndex, undoText, true);
-            _addedCharacters.setTail(nextUndo);
-            if (_addedCharacters.getTail() != null) {
-                nextUndo.setPrev(_addedCharacters);
-                _addedCharacters = nextUndo;
-            }
-            if (firstText.getText().equals("\n")) {
-                currY = (int) firstText.getY() - fontSize;
-            } else {
-                currY = (int) firstText.getY();
-            }
-            currX = (int) firstText.getX();
-            highlightedText = "";
-            highlightStartIndex = highlightEndIndex = 0;
-            _root.getChildren().removeAll(highlights);
+            long begin = System.nanoTime();
+            int length = _selection.getEnd() - _selection.getStart();
+            replaceSelection("");
+            _editorMetrics.edit(false, length, System.nanoTime() - begin);
         }
     }
 
-    private void printContents() {
-        for (int i = 0; i < _contents.size(); i += 1) {
-            TextObject temp = _contents.get(i);
-            if (temp.getText().equals("\n")) {
-                System.out.println();
-            } else {
-                System.out.print(" (" + temp.getText() + "," + temp.getX() + "," + temp.getY() + ")");
-            }
-        }
+    private boolean isNewLine(int index) {
+        return index >= 0 && index < _document.length() && _document.charAt(index) == '\n';
     }
 
-    private TextObject setNewLine() {
-        currX = MARGIN_WIDTH;
-        currY += fontSize;
-        currLine += 1;
-        TextObject addText = new TextObject(currX, currY, "\n", currLine);
-        _contents.add(contentsIndex, addText);
+    private char setNewLine() {
+        insertCharacter(contentsIndex, '\n');
         contentsIndex += 1;
-        return addText;
+        return '\n';
     }
 
-    private TextObject setCharacter(char character) {
-        if (character == '*') {
-            System.out.println("entered");
-        }
+    /**
+     * Inserts a typed character at the caret, turning a carriage return into a newline.
+     * @return the character that went into the document
+     */
+    private char setCharacter(char character) {
         if (character == 13) {
             return setNewLine();
         }
-        TextObject addText = new TextObject(currX, currY, String.valueOf(character), currLine);
-        addText.getTextObject().setTextOrigin(VPos.TOP);
-        addText.getTextObject().setFont(Font.font(fontName, fontSize));
-        currX += addText.getWidth() + 0.5;
-        _root.getChildren().add(addText.getTextObject());
-        _contents.add(contentsIndex, addText);
+        insertCharacter(contentsIndex, character);
         contentsIndex += 1;
-        if (currX > WINDOW_WIDTH - MARGIN_WIDTH) {
-            TextObject temp = wrapWord(contentsIndex - 1);
-            if (temp == null) {
-                currX = MARGIN_WIDTH;
-                currY += fontSize;
-            } else {
-                currY = (int) temp.getY();
-                currX = (int) (temp.getX() + temp.getWidth() + 0.5);
-            }
-            currLine += 1;
+        return character;
+    }
+
+    /**
+     * Puts a character into the document at index and re-wraps the lines around it.
+     */
+    private void insertCharacter(int index, char character) {
+        _document.insert(index, String.valueOf(character));
+        reflow(index, 0, 1);
+    }
+
+    /**
+     * Takes the character at index out of the document and re-wraps the lines around it.
+     */
+    private char removeCharacter(int index) {
+        char character = _document.charAt(index);
+        _document.delete(index, 1);
+        reflow(index, 1, 0);
+        return character;
+    }
+
+    /**
+     * Replaces removed characters at index with text in one splice and one re-wrap. A selection
+     * would no longer cover the same text, so it is dropped.
+     */
+    private void replace(int index, int removed, CharSequence text) {
+        if (!_selection.isEmpty()) {
+            flushLayout();
+            _selection.clear(index);
+            _renderer.setSelection(0, 0);
         }
-        currLine = addText.getLine();
-        return addText;
+        _document.delete(index, removed);
+        _document.insert(index, text);
+        reflow(index, removed, text.length());
     }
 
-    public void format() {
-        TextObject temp;
-        int line = 1;
-        int x = MARGIN_WIDTH;
-        int y = MARGIN_HEIGHT;
-        totalLines = 1;
-        for (int i = 0; i < _contents.size(); i += 1) {
-            temp = _contents.get(i);
-            if (temp.getText().equals("*")) {
-                System.out.println(temp.getX() + " " + temp.getY());
-            }
-            if ((int) (x + temp.getWidth() + 0.5) > WINDOW_WIDTH - MARGIN_WIDTH) {
-                wrapWord(i);
-                if (temp.getText().equals(" ")) {
-                    x = (int)(MARGIN_WIDTH - temp.getWidth() + 0.5);
-                } else {
-                    x = (int) temp.getX();
+    /**
+     * Replaces the selection with text as one edit, so it takes one re-wrap, one undo and one
+     * journal record, and moves the caret past it.
+     */
+    private void replaceSelection(String text) {
+        int start = _selection.getStart();
+        String removed = _selection.getText(_document);
+        replace(start, removed.length(), text);
+        _undoJournal.record(start, removed, text);
+        contentsIndex = start + text.length();
+    }
+
+    /**
+     * Hands a snapshot of the document to the saver, so typing can go on while it is written.
+     */
+    private void save() {
+        _current.pendingSaves += 1;
+        setStatus("saving");
+        long checkpoint = _current.journal == null ? 0 : _current.journal.checkpoint();
+        _saver.save(_current.file, charset, _document.snapshot(), new SaveListener(_current, checkpoint));
+    }
+
+    /**
+     * Replays the edits a crash left in the recovery journal onto the file just read, then starts
+     * journaling new ones.
+     */
+    private void recover(OpenFile file) {
+        RecoveryJournal journal = new RecoveryJournal(file.file, _journalExecutor, _callbacks, new JournalListener(file));
+        try {
+            int replayed = journal.recover(file.document);
+            if (replayed > 0) {
+                setStatus(file, "recovered " + replayed + " edits");
+                if (file == _current) {
+                    // The replayed edits went around reflow, so the styles start over too.
+                    startHighlighter();
+                    requestFormat();
                 }
-                y += fontSize;
-                totalLines += 1;
-                line += 1;
-            } else if (temp.getText().equals("\n")) {
-                x = MARGIN_WIDTH;
-                y += fontSize;
-                totalLines += 1;
-                line += 1;
-            }
-            if (x == MARGIN_WIDTH) {
-                firstLetterInLine.put(line, temp);
-            }
-            temp.setLine(line);
-            temp.setIndex(i);
-            temp.setX(x);
-            temp.setY(y);
-            x += temp.getWidth() + 0.5;
-        }
-    }
-
-    private TextObject wrapWord(int index) {
-        ArrayList<TextObject> word = getEntireWord(index);
-        if (word.isEmpty()) {
-            return null;
-        }
-        TextObject temp = word.get(0);
-        TextObject lastLetter = word.get(word.size() - 1);
-        int x = MARGIN_WIDTH;
-        int y;
-        double width = lastLetter.getX() + lastLetter.getWidth();
-        int line;
-        if (temp.getLine() == 0) {
-            line = 0;
+            }
+            file.journal = journal;
+        } catch (IOException e) {
+            journal.close();
+            System.out.println("Unable to recover " + file.file + "; exception was: " + e);
+        }
+    }
+
+    /**
+     * Puts file on screen and lays it out from scratch. The file that was there keeps its caret,
+     * selection, scroll position and finished search index, and drops its layout and its nodes. A
+     * file shown for the first time starts loading now.
+     */
+    private void show(OpenFile file) {
+        if (_current != null) {
+            _current.caret = contentsIndex;
+            _current.scrollY = _renderer.getScrollY();
+            // A finished index stays with its file, since nothing edits a file that isn't shown;
+            // a build still running is cancelled.
+            if (_index != null && !_index.isReady()) {
+                dropIndex();
+            }
+            _current.index = _index;
+        }
+        damageOffset = -1;
+        _current = file;
+        _document = file.document;
+        _undoJournal = file.undoJournal;
+        _selection = file.selection;
+        _index = file.index;
+        contentsIndex = file.caret;
+
+        // Each renderer gets a node of its own to scale and scroll, which goes away with it.
+        _root.getChildren().clear();
+        _layout = new TextLayout(_document, _metrics, textWidth());
+        if (useCanvas) {
+            Canvas canvas = new Canvas();
+            _root.getChildren().add(canvas);
+            _renderer = new CanvasRenderer(canvas, _document, _layout, MARGIN_WIDTH, MARGIN_HEIGHT);
         } else {
-            line = temp.getLine() + 1;
+            Group group = new Group();
+            _root.getChildren().add(group);
+            _renderer = new Viewport(group, _document, _layout, MARGIN_WIDTH, MARGIN_HEIGHT);
         }
-        // below needs fixing
-        int stuff = (int)(width - temp.getX() + 0.5);
-        if (stuff > WINDOW_WIDTH - MARGIN_WIDTH * 2) {
-            y = (int) temp.getY();
+        _renderer.setSize(windowWidth - scrollBarWidth, windowHeight);
+        _renderer.setMetrics(_metrics, fontSize);
+        _renderer.setSelection(_selection.getStart(), _selection.getEnd());
+        startHighlighter();
+        format();
+        _renderer.setScrollY(file.scrollY);
+        _scrollBar.setValue(file.scrollY);
+        cursorPending = true;
+        showTitle();
+
+        if (!file.opened) {
+            file.opened = true;
+            if (file.file.exists()) {
+                file.loading = true;
+                new DocumentLoader(file.file, charset, _callbacks, new LoadListener(file)).start();
+            } else {
+                recover(file);
+            }
         } else {
-            y = (int) temp.getY() + fontSize;
+            updateIndex();
         }
-        //
-        for (int i = 0; i < word.size(); i += 1) {
-            temp = word.get(i);
-            temp.setX(x);
-            temp.setY(y);
-            temp.setLine(line);
-            x += temp.getWidth() + 0.5;
-            if (x >= WINDOW_WIDTH - MARGIN_WIDTH * 2) {
-                x = MARGIN_WIDTH;
-                y += fontSize;
+        requestPulse();
+    }
+
+    /**
+     * Lexes the document on screen from scratch if its file type has a lexer, dropping the styles
+     * of whatever was shown before.
+     */
+    private void startHighlighter() {
+        if (_highlighter != null) {
+            _highlighter.close();
+            _highlighter = null;
+        }
+        Lexer lexer = Lexers.forFile(_current.file);
+        if (lexer != null) {
+            _highlighter = new SyntaxHighlighter(_document, lexer, _highlightExecutor, _callbacks, new HighlightListener());
+        }
+        _renderer.setHighlighter(_highlighter);
+    }
+
+    private boolean isOpen(File file) {
+        for (OpenFile open : _files) {
+            if (open.file.equals(file)) {
+                return true;
             }
         }
-        if (!_contents.get(index).getText().equals(" ")) {
-            temp = word.get(0);
-            firstLetterInLine.put(temp.getLine(), temp);
+        return false;
+    }
+
+    /**
+     * Shows the name of the file on screen, and what last happened to it, in the title bar.
+     */
+    private void showTitle() {
+        String title = "Editor - " + _current.file.getName();
+        if (_files.size() > 1) {
+            title += " (" + (_files.indexOf(_current) + 1) + "/" + _files.size() + ")";
         }
-        return _contents.get(index);
+        if (_current.status != null) {
+            title += " - " + _current.status;
+        }
+        _stage.setTitle(title);
     }
 
-    private void undo() {
-        UndoList.Node node = _addedCharacters.getNode();
-        if (node == null) {
-            return;
+    private void setStatus(OpenFile file, String status) {
+        file.status = status;
+        if (file == _current) {
+            showTitle();
         }
-        int index = node.getIndex();
-        TextObject text = node.getText();
-        if (node.isDeleted()) {
-            if (node.getText().getText().length() > 1) {
-                String stringContents = text.getText();
-                largeTextInsertion(stringContents);
-                index += text.getText().length();
-            } else {
-                _contents.add(index, text);
-                currX = (int) (text.getX() + text.getWidth() + 0.5);
-                currY = (int) text.getY();
-                _root.getChildren().add(text.getTextObject());
-            }
+    }
+
+    private void setStatus(String status) {
+        setStatus(_current, status);
+    }
+
+    /**
+     * Lays out the whole document, for when the font or the window width changes.
+     */
+    public void format() {
+        damageOffset = -1;
+        long begin = System.nanoTime();
+        _layout.setWidth(textWidth());
+        _layout.reflowAll();
+        _editorMetrics.layout(true, System.nanoTime() - begin, _layout.getLineCount());
+        _renderer.reset();
+        updateScrollBar();
+    }
+
+    /**
+     * Queues the lines an edit touched to be re-wrapped on the next pulse. Edits that arrive before
+     * then are merged into one range of the document as it was at the last layout.
+     */
+    private void reflow(int index, int removed, int inserted) {
+        if (_index != null) {
+            _index.update(index, removed, inserted);
+        }
+        if (_highlighter != null) {
+            _highlighter.update(index, removed, inserted);
+        }
+        if (_current.journal != null) {
+            _current.journal.record(index, removed, _document.subSequence(index, index + inserted));
+        }
+        if (damageOffset < 0) {
+            damageOffset = index;
+            damageRemoved = removed;
+            damageInserted = inserted;
         } else {
-            if (node.getText().getText().length() > 1) {
+            int start = Math.min(damageOffset, index);
+            int end = Math.max(damageOffset + damageInserted, index + removed);
+            damageRemoved = end - start - (damageInserted - damageRemoved);
+            damageInserted = end - start - removed + inserted;
+            damageOffset = start;
+        }
+        requestPulse();
+    }
 
-            } else {
-                _contents.remove(text);
-                currX = (int) text.getX();
-                currY = (int) text.getY();
-                _root.getChildren().remove(text.getTextObject());
-            }
+    /**
+     * Re-wraps the queued edits now and hands the changed lines to the renderer. Anything that
+     * reads the layout between pulses, like hit testing or binding lines that scroll in, calls
+     * this first.
+     */
+    private void flushLayout() {
+        if (damageOffset < 0) {
+            return;
         }
-        _addedCharacters = _addedCharacters.getPrev();
-        contentsIndex = index;
+        long begin = System.nanoTime();
+        TextLayout.Damage damage = _layout.update(damageOffset, damageRemoved, damageInserted);
+        _editorMetrics.layout(false, System.nanoTime() - begin, damage.getNewLineCount());
+        damageOffset = -1;
+        _renderer.linesChanged(damage);
+        updateScrollBar();
     }
 
-    private void redo() {
-        if(_addedCharacters.getTail() == null) {
+    /**
+     * Does the queued layout and caret work ahead of the pulse, for input that depends on where
+     * things are on screen.
+     */
+    private void flush() {
+        flushLayout();
+        if (formatPending) {
+            formatPending = false;
+            format();
+        }
+        if (cursorPending) {
+            cursorPending = false;
+            updateCursor();
+        }
+    }
+
+    private void requestFormat() {
+        formatPending = true;
+        requestPulse();
+    }
+
+    private void requestPulse() {
+        if (pulseTimer != null) {
+            pulseTimer.schedule();
+        }
+    }
+
+    private int textWidth() {
+        return windowWidth - scrollBarWidth - MARGIN_WIDTH * 2;
+    }
+
+    private void updateScrollBar() {
+        if (_scrollBar == null) {
             return;
         }
-        UndoList.Node node = _addedCharacters.getTail().getNode();
-        TextObject redoText = node.getText();
-        int index = node.getIndex();
-        if (node.isDeleted()) {
-            _contents.remove(redoText);
-            contentsIndex -= 1;
-            currX = (int) redoText.getX();
-            currY = (int) redoText.getY();
-            _root.getChildren().remove(redoText.getTextObject());
-        } else {
-            _contents.add(index, redoText);
-            currX = (int) (redoText.getX() + redoText.getWidth() + 0.5);
-            currY = (int) redoText.getY();
-            _root.getChildren().add(redoText.getTextObject());
+        int contentHeight = MARGIN_HEIGHT + _layout.getLineCount() * fontSize;
+        double max = Math.max(0, contentHeight - windowHeight);
+        _scrollBar.setMax(max);
+        _scrollBar.setVisibleAmount(max * windowHeight / (double) contentHeight);
+        if (_scrollBar.getValue() > max) {
+            _scrollBar.setValue(max);
         }
-        _addedCharacters = _addedCharacters.getTail();
-        contentsIndex = index;
     }
 
-    private void resize(int size) {
-        fontSize = size;
-        for (int i = 0; i < _contents.size(); i += 1) {
-            _contents.get(i).getTextObject().setFont(new Font(fontName, fontSize));
+    private void scrollTo(double y) {
+        flushLayout();
+        _renderer.setScrollY(y);
+        requestPulse();
+    }
+
+    private void undo() {
+        UndoJournal.Edit edit = _undoJournal.undo();
+        if (edit == null) {
+            return;
         }
-        if (contentsIndex < 0) {
+        replace(edit.getOffset(), edit.getInserted().length(), edit.getRemoved());
+        contentsIndex = edit.getOffset() + edit.getRemoved().length();
+    }
+
+    private void redo() {
+        UndoJournal.Edit edit = _undoJournal.redo();
+        if (edit == null) {
             return;
-        } else if (contentsIndex == 0) {
-            setCursor(MARGIN_WIDTH, 0);
-        } else {
-            TextObject temp = _contents.get(contentsIndex - 1);
-            setCursor((int) (temp.getX() + temp.getWidth() + 0.5), (int) temp.getY());
         }
+        replace(edit.getOffset(), edit.getRemoved().length(), edit.getInserted());
+        contentsIndex = edit.getOffset() + edit.getInserted().length();
     }
 
-    private ArrayList<TextObject> getEntireWord(int index) {
-        ArrayList<TextObject> word = new ArrayList<>();
-        int wordBeginIndex = index;
-        int wordEndIndex = index + 1;
-        while (wordBeginIndex >= 0) {
-            TextObject temp = _contents.get(wordBeginIndex);
-            if (temp.getText().equals(" ")) {
-                break;
-            }
-            word.add(0, temp);
-            wordBeginIndex -= 1;
+    /**
+     * Zooms to size right away by scaling what is on screen, and lays the text out again with the
+     * new font once the zoom keys have been left alone for a moment, so a run of zoom steps costs
+     * one reflow.
+     */
+    private void resize(int size) {
+        zoomSize = size;
+        _renderer.setScale(size / (double) fontSize);
+        if (zoomTimeline == null) {
+            zoomTimeline = new Timeline();
+            zoomTimeline.getKeyFrames().add(new KeyFrame(Duration.millis(ZOOM_SETTLE_MILLIS), new ZoomEventHandler()));
         }
-        while (wordEndIndex < _contents.size()) {
-            TextObject temp = _contents.get(wordEndIndex);
-            if (_contents.get(wordEndIndex).getText().equals(" ")){
-                break;
-            }
-            word.add(temp);
-            wordEndIndex += 1;
+        zoomTimeline.playFromStart();
+        requestPulse();
+    }
+
+    /**
+     * Switches to the font the zoom preview was showing. Metrics are kept per size, so going back
+     * to a size used before measures nothing.
+     */
+    private void applyZoom() {
+        _renderer.setScale(1);
+        if (zoomSize == fontSize) {
+            return;
         }
-        return word;
+        fontSize = zoomSize;
+        _metrics = GlyphMetrics.get(fontName, fontSize);
+        flushLayout();
+        _layout.setMetrics(_metrics);
+        _renderer.setMetrics(_metrics, fontSize);
+        requestFormat();
+        cursorPending = true;
     }
 
     private void copy() {
         Clipboard clipboard = Clipboard.getSystemClipboard();
         ClipboardContent newContent = new ClipboardContent();
-        newContent.putString(highlightedText);
+        newContent.putString(_selection.getText(_document));
         clipboard.setContent(newContent);
     }
 
     private void paste() {
         Clipboard clipboard = Clipboard.getSystemClipboard();
         String stringContents = clipboard.getString();
-        UndoList nextUndo = largeTextInsertion(stringContents);
-        _addedCharacters.setTail(nextUndo);
-        if (_addedCharacters.getTail() != null) {
-            nextUndo.setPrev(_addedCharacters);
-            _addedCharacters = nextUndo;
-        }
-    }
-
-    private UndoList largeTextInsertion(String s) {
-        String stringContents = s;
-        TextObject firstText = setCharacter(stringContents.charAt(0));
-        if (stringContents != "") {
-            String characters = stringContents.substring(1);
-            TextObject temp = null;
-            for (char c : characters.toCharArray()) {
-                if (c == '\n') {
-                    temp = setNewLine();
-                } else {
-                    temp = setCharacter(c);
-                }
+        if (stringContents != null && !stringContents.isEmpty()) {
+            long begin = System.nanoTime();
+            String inserted;
+            if (_selection.isEmpty()) {
+                int index = contentsIndex;
+                inserted = largeTextInsertion(stringContents);
+                _undoJournal.record(index, "", inserted);
+            } else {
+                inserted = normalizeLineBreaks(stringContents);
+                replaceSelection(inserted);
+            }
+            _editorMetrics.edit(true, inserted.length(), System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * Inserts text at the caret as one splice, re-wraps once and moves the caret past it. Line
+     * breaks are normalized to newlines, as they are when typed.
+     * @return the text that went into the document
+     */
+    private String largeTextInsertion(String text) {
+        String inserted = normalizeLineBreaks(text);
+        replace(contentsIndex, 0, inserted);
+        contentsIndex += inserted.length();
+        return inserted;
+    }
+
+    private static String normalizeLineBreaks(String text) {
+        return text.replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    /**
+     * Asks for the text to find, selecting the first match after the caret as it is typed.
+     */
+    private void find() {
+        final int origin = _selection.isEmpty() ? contentsIndex : _selection.getStart();
+        TextInputDialog dialog = dialog("Find", searchText);
+        dialog.getEditor().textProperty().addListener(new ChangeListener<String>() {
+            @Override
+            public void changed(ObservableValue<? extends String> observable, String oldText, String newText) {
+                searchText = newText;
+                _search = null;
+                search(origin, true);
             }
-            UndoList undoList = new UndoList(contentsIndex, firstText, false);
-            contentsIndex += stringContents.length();
-            currX = (int) (temp.getX() + temp.getWidth() + 0.5);
-            currY = (int) temp.getY();
-            currLine = temp.getLine();
-            return undoList;
+        });
+        Optional<String> text = dialog.showAndWait();
+        if (text.isPresent() && !text.get().equals(searchText)) {
+            searchText = text.get();
+            _search = null;
+            search(origin, true);
+        }
+    }
+
+    /**
+     * Selects the next match after the selection, or the previous one before it.
+     */
+    private void findNext(boolean forward) {
+        if (forward) {
+            search(_selection.isEmpty() ? contentsIndex : _selection.getEnd(), true);
+        } else {
+            search(_selection.isEmpty() ? contentsIndex : _selection.getStart(), false);
+        }
+    }
+
+    /**
+     * Selects the first match after from, or the last one before it, wrapping around the ends of
+     * the document.
+     */
+    private void search(int from, boolean forward) {
+        if (!prepareSearch()) {
+            return;
+        }
+        boolean found;
+        if (forward) {
+            found = _search.findNext(_document, from) || _search.findNext(_document, 0);
+        } else {
+            found = _search.findPrevious(_document, from) || _search.findPrevious(_document, _document.length());
+        }
+        if (!found) {
+            setStatus("not found: " + searchText);
+            return;
+        }
+        setStatus(null);
+        flushLayout();
+        _selection.set(_search.getMatchStart(), _search.getMatchEnd());
+        _renderer.setSelection(_selection.getStart(), _selection.getEnd());
+        contentsIndex = forward ? _search.getMatchEnd() : _search.getMatchStart();
+        _undoJournal.breakCoalescing();
+        cursorPending = true;
+        requestPulse();
+    }
+
+    /**
+     * Asks for a replacement and replaces every match in the document as one edit, so it takes
+     * one re-wrap and one undo.
+     */
+    private void replaceAll() {
+        if (!prepareSearch()) {
+            return;
+        }
+        Optional<String> text = dialog("Replace " + searchText + " with", replaceText).showAndWait();
+        if (!text.isPresent()) {
+            return;
+        }
+        replaceText = text.get();
+        SearchEngine.Replacement replacement;
+        try {
+            replacement = _search.replaceAll(_document, replaceText);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            setStatus("bad replacement");
+            System.out.println("Bad replacement " + replaceText + ": " + e.getMessage());
+            return;
+        }
+        if (replacement == null) {
+            setStatus("not found: " + searchText);
+            return;
+        }
+        int offset = replacement.getOffset();
+        CharSequence removed = _document.subSequence(offset, offset + replacement.getRemovedLength());
+        replace(offset, removed.length(), replacement.getInserted());
+        _undoJournal.record(offset, removed, replacement.getInserted());
+        contentsIndex = offset + replacement.getInserted().length();
+        cursorPending = true;
+        setStatus("replaced " + replacement.getCount());
+    }
+
+    /**
+     * Compiles the search text with the current options, unless that was already done.
+     * @return false if there is nothing to search for
+     */
+    private boolean prepareSearch() {
+        if (searchText.isEmpty()) {
+            return false;
+        }
+        if (_search == null) {
+            try {
+                _search = new SearchEngine(searchText, matchCase, useRegex);
+            } catch (PatternSyntaxException e) {
+                setStatus("bad pattern");
+                System.out.println(e.getMessage());
+                return false;
+            }
+        }
+        updateIndex();
+        _search.setIndex(_index);
+        return true;
+    }
+
+    private TextInputDialog dialog(String prompt, String text) {
+        TextInputDialog dialog = new TextInputDialog(text);
+        dialog.setTitle("Editor");
+        dialog.setHeaderText(null);
+        dialog.setContentText(prompt + (matchCase ? " (match case)" : "") + (useRegex ? " (regex)" : ""));
+        return dialog;
+    }
+
+    /**
+     * Starts building the search index once the document is big enough for it to pay off, and
+     * drops it when the document gets smaller than that again.
+     */
+    private void updateIndex() {
+        if (_document.length() < indexThreshold) {
+            dropIndex();
+        } else if (_index == null && !_current.loading) {
+            _index = new TrigramIndex(_document);
+            _index.start(_indexExecutor, _callbacks, new IndexListener());
+        }
+    }
+
+    private void dropIndex() {
+        if (_index != null) {
+            _index.close();
+            _index = null;
         }
-        return null;
     }
 
     private void makeCursorBlink() {
@@ -768,106 +1065,134 @@ public class Editor extends Application {
         KeyFrame keyFrame = new KeyFrame(Duration.seconds(0.5), cursorChange);
         timeline.getKeyFrames().add(keyFrame);
         timeline.play();
-        cursor.toFront();
     }
 
     /**
-     * Start the search the closest spot between the first letter, current letter, and last letter.
-     * Find the nearest Text object according to the coordinates.
+     * Find the caret position nearest to the coordinates: the line comes from y, then the
+     * closest gap between two characters on that line.
      * @param x horizontal position
      * @param y vertical position
-     * @return
-     */
-    private TextObject findNearestText(double x, double y) {
-        int line = (int) (y / (double) fontSize) + 1;
-        TextObject temp;
-        if (line > totalLines) {
-            temp = _contents.get(_contents.size() - 1);
-            return new TextObject((int) (temp.getX() + temp.getWidth() + 0.5), (int) temp.getY(), temp.getText(), temp.getLine(), _contents.size());
-        } else if (line < 1) {
-            temp = _contents.get(0);
-            return temp;
-        }
-        temp = firstLetterInLine.get(line);
-        int index = temp.getIndex();
-        while (index < _contents.size() && _contents.get(index).getLine() == line) {
-            temp = _contents.get(index);
-            if (temp.getX() <= x && (int) (temp.getX() + temp.getWidth() + 0.5) >= x) {
-                double middleX = temp.getX() + temp.getWidth() / 2.0;
-                if (x - middleX > 0) {
-                    temp = new TextObject((int) (temp.getX() + temp.getWidth() + 0.5), (int) temp.getY(), temp.getText(), line, index + 1);
-                } else {
-                    temp = new TextObject((int) temp.getX(), (int) temp.getY(), temp.getText(), line, index);
-                }
-                return temp;
+     * @return index in the document
+     */
+    private int findNearestText(double x, double y) {
+        hitTests += 1;
+        return _layout.hitTest(x - MARGIN_WIDTH, y - MARGIN_HEIGHT);
+    }
+
+    /**
+     * Moves the cursor to where contentsIndex is laid out and scrolls it into view.
+     */
+    private void updateCursor() {
+        int line = _layout.getLineOfOffset(contentsIndex);
+        currLine = line + 1;
+        setCursor(MARGIN_WIDTH + _layout.getX(contentsIndex), MARGIN_HEIGHT + line * fontSize);
+        if (_scrollBar != null) {
+            if (currY < _scrollBar.getValue()) {
+                _scrollBar.setValue(currY);
+            } else if (currY + fontSize > _scrollBar.getValue() + windowHeight) {
+                _scrollBar.setValue(Math.min(_scrollBar.getMax(), currY + fontSize - windowHeight));
             }
-            index += 1;
-        }
-        if (x - (int) (temp.getX() + temp.getWidth() - MARGIN_WIDTH + 0.5) < 0) {
-            temp = firstLetterInLine.get(line);
-            return new TextObject(MARGIN_WIDTH, (int) temp.getY(), temp.getText(), line, temp.getIndex());
         }
-        return new TextObject((int) (temp.getX() + temp.getWidth() + 0.5), (int) temp.getY(), temp.getText(), temp.getLine(), index);
     }
 
     private void setCursor(int x, int y) {
         currX = x;
         currY = y;
-        cursor.setX(x);
-        cursor.setY(y);
-        cursor.setFill(Color.BLACK);
-        cursor.setHeight(fontSize);
-        if (!_root.getChildren().contains(cursor)) {
-            _root.getChildren().add(cursor);
-        }
+        _renderer.setCursor(x, y);
     }
 
     @Override
     public void start(Stage primaryStage) {
+        _stage = primaryStage;
         Group root = new Group();
-        Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT, Color.WHITE);
-        EventHandler<KeyEvent> keyEventHandler = new KeyEventHandler(root);
-        try {
-            if (editFile.exists()) {
-                String readFile = "";
-                FileReader reader = new FileReader(editFile);
-                BufferedReader bufferedReader = new BufferedReader(reader);
-                int intRead;
-                while ((intRead = bufferedReader.read()) != -1) {
-                    readFile += (char) intRead;
-                }
-                keyEventHandler =
-                        new KeyEventHandler(root, readFile);
+        _root = new Group();
+        root.getChildren().add(_root);
+        Scene scene = new Scene(root, windowWidth, windowHeight, Color.WHITE);
+        useCanvas = "canvas".equals(getParameters().getNamed().get("renderer"));
+
+        _scrollBar = new ScrollBar();
+        _scrollBar.setOrientation(Orientation.VERTICAL);
+        _scrollBar.setPrefHeight(windowHeight);
+        _scrollBar.setMin(0);
+        root.getChildren().add(_scrollBar);
+        _scrollBar.valueProperty().addListener(new ChangeListener<Number>() {
+            @Override
+            public void changed(ObservableValue<? extends Number> observable,
+                                Number oldValue,
+                                Number newValue) {
+                scrollTo(newValue.doubleValue());
+            }
+        });
+
+        String undoLimitName = getParameters().getNamed().get("undo-limit");
+        if (undoLimitName != null) {
+            try {
+                undoLimit = Long.parseLong(undoLimitName) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                System.out.println("Undo limit must be a number of megabytes: " + undoLimitName);
+                Platform.exit();
+                return;
+            }
+        }
+
+        String indexName = getParameters().getNamed().get("index-min");
+        if (indexName != null) {
+            try {
+                indexThreshold = Long.parseLong(indexName) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                System.out.println("Index size must be a number of megabytes: " + indexName);
+                Platform.exit();
+                return;
             }
-        } catch (FileNotFoundException fileNotFoundException) {
-        System.out.println("File not found! Exception was: " + fileNotFoundException);
-        } catch (IOException ioException) {
-        System.out.println("Error when copying; exception was: " + ioException);
         }
+
+        String charsetName = getParameters().getNamed().get("charset");
+        if (charsetName != null) {
+            try {
+                charset = Charset.forName(charsetName);
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                System.out.println("Unknown charset " + charsetName);
+                Platform.exit();
+                return;
+            }
+        }
+
+        for (String name : getParameters().getUnnamed()) {
+            File file = new File(name).getAbsoluteFile();
+            if (!name.startsWith("--") && !isOpen(file)) {
+                _files.add(new OpenFile(file));
+            }
+        }
+
+        _editorMetrics.register();
+        pulseTimer = new PulseTimer();
+        EventHandler<KeyEvent> keyEventHandler = new KeyEventHandler();
         scene.setOnKeyTyped(keyEventHandler);
         scene.setOnKeyPressed(keyEventHandler);
-        root.getChildren().add(cursor);
 
         MouseEventHandler mouseEventHandler = new MouseEventHandler();
         scene.setOnMousePressed(mouseEventHandler);
         scene.setOnMouseDragged(mouseEventHandler);
         scene.setOnMouseReleased(mouseEventHandler);
+        scene.setOnScroll(new EventHandler<ScrollEvent>() {
+            @Override
+            public void handle(ScrollEvent scrollEvent) {
+                double value = _scrollBar.getValue() - scrollEvent.getDeltaY();
+                _scrollBar.setValue(Math.max(0, Math.min(_scrollBar.getMax(), value)));
+            }
+        });
 
         scene.widthProperty().addListener(new ChangeListener<Number>() {
             @Override
             public void changed(ObservableValue<? extends Number> observable,
                                 Number oldScreenWidth,
                                 Number newScreenWidth) {
-               WINDOW_WIDTH = newScreenWidth.intValue();
-               format();
-               TextObject temp;
-               if (contentsIndex >= _contents.size()) {
-                   temp = _contents.get(_contents.size() - 1);
-                   setCursor((int) (temp.getX() + temp.getWidth() + 0.5), (int) temp.getY());
-               } else {
-                   temp = _contents.get(contentsIndex);
-                   setCursor((int) temp.getX(), (int) temp.getY());
-               }
+               windowWidth = newScreenWidth.intValue();
+               _scrollBar.setLayoutX(windowWidth - scrollBarWidth);
+               flushLayout();
+               _renderer.setSize(windowWidth - scrollBarWidth, windowHeight);
+               requestFormat();
+               cursorPending = true;
             }
         });
         scene.heightProperty().addListener(new ChangeListener<Number>() {
@@ -875,43 +1200,83 @@ public class Editor extends Application {
                     ObservableValue<? extends Number> observableValue,
                     Number oldScreenHeight,
                     Number newScreenHeight) {
-                WINDOW_HEIGHT = newScreenHeight.intValue();
-                format();
-                TextObject temp;
-                if (contentsIndex >= _contents.size()) {
-                    temp = _contents.get(_contents.size() - 1);
-                    setCursor((int) (temp.getX() + temp.getWidth() + 0.5), (int) temp.getY());
-                } else {
-                    temp = _contents.get(contentsIndex);
-                    setCursor((int) temp.getX(), (int) temp.getY());
-                }
+                windowHeight = newScreenHeight.intValue();
+                _scrollBar.setPrefHeight(windowHeight);
+                flushLayout();
+                _renderer.setSize(windowWidth - scrollBarWidth, windowHeight);
+                updateScrollBar();
+                cursorPending = true;
+                requestPulse();
             }
         });
 
-        /**
-        ScrollBar scrollBar = new ScrollBar();
-        scrollBar.setOrientation(Orientation.VERTICAL);
-        scrollBar.setPrefHeight(WINDOW_HEIGHT);
-        **/
-
-        primaryStage.setTitle("Editor");
+        show(_files.get(0));
 
         primaryStage.setScene(scene);
         primaryStage.show();
+
+        scrollBarWidth = (int) Math.ceil(_scrollBar.getLayoutBounds().getWidth());
+        _scrollBar.setLayoutX(windowWidth - scrollBarWidth);
+        _renderer.setSize(windowWidth - scrollBarWidth, windowHeight);
+        format();
+        updateCursor();
+        _renderer.render();
+
+        if (getParameters().getUnnamed().contains("--frame-stats")
+                || getParameters().getNamed().containsKey("frame-stats")) {
+            frameTimer = new FrameTimer();
+            frameTimer.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        for (OpenFile file : _files) {
+            if (file.journal != null) {
+                file.journal.close();
+            }
+        }
+        _journalExecutor.shutdown();
+        try {
+            // The journal thread is a daemon, so the last commits have to be waited for.
+            _journalExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _highlightExecutor.shutdown();
+        _indexExecutor.shutdown();
+        _saver.shutdown();
+        if (frameTimer != null) {
+            frameTimer.stop();
+            frameTimer.printSummary();
+        }
+        if (System.getProperty("editor.metrics") != null) {
+            _editorMetrics.printSummary();
+        }
     }
 
+    /**
+     * Usage: Editor [--renderer=canvas] [--charset=name] [--undo-limit=megabytes]
+     *     [--index-min=megabytes] [--frame-stats] filename...
+     * Run with -Deditor.metrics to print latency percentiles on exit. With several files open,
+     * Ctrl+Page Down and Ctrl+Page Up switch between them.
+     */
     public static void main(String[] args) {
-        if (args.length == 0) {
+        boolean named = false;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                named = true;
+                File file = new File(arg);
+                if (file.exists() && file.listFiles() != null) {
+                    System.out.println("Unable to open file " + arg);
+                    System.exit(0);
+                }
+            }
+        }
+        if (!named) {
             System.out.println("No filename was provided.");
             System.exit(0);
-        } else if (args.length == 1) {
-            File file = new File(args[0]);
-            if (file.exists() && file.listFiles() != null) {
-                System.out.println("Unable to open file " + args[0]);
-                System.exit(0);
-            }
-            editFile = file;
-            launch(args);
         }
+        launch(args);
     }
-}
\ No newline at end of file
+}
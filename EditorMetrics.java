@@ -0,0 +1,344 @@
+package editor;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Latencies and sizes of the things the editor does on the FX thread, kept in histograms that are
+ * cheap enough to leave on. They can be read over JMX, and each one is also emitted as a JFR event
+ * in the Editor category, so a recording shows them next to GC pauses and safepoints.
+ *
+ * The events carry the measured duration as a field instead of being timed by JFR, since some of
+ * them start in one event handler and end in a later pulse.
+ */
+public class EditorMetrics implements EditorMetricsMXBean {
+
+    @Name("editor.Keystroke")
+    @Label("Keystroke")
+    @Category("Editor")
+    static class KeystrokeEvent extends Event {
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("editor.Layout")
+    @Label("Layout")
+    @Category("Editor")
+    static class LayoutEvent extends Event {
+        @Label("Whole Document")
+        boolean full;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+
+        @Label("Lines")
+        int lines;
+    }
+
+    @Name("editor.MouseHitTests")
+    @Label("Mouse Hit Tests")
+    @Category("Editor")
+    static class MouseEvent extends Event {
+        @Label("Hit Tests")
+        int hitTests;
+    }
+
+    @Name("editor.Edit")
+    @Label("Paste or Delete")
+    @Category("Editor")
+    static class EditEvent extends Event {
+        @Label("Paste")
+        boolean paste;
+
+        @Label("Characters")
+        int length;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("editor.IndexBuild")
+    @Label("Search Index Build")
+    @Category("Editor")
+    static class IndexEvent extends Event {
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+
+        @Label("Memory")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+
+    @Name("editor.FileTransfer")
+    @Label("Load or Save")
+    @Category("Editor")
+    static class FileEvent extends Event {
+        @Label("Save")
+        boolean save;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    private final Histogram _keystrokeLatency = new Histogram();
+    private final Histogram _formatTime = new Histogram();
+    private final Histogram _formatLines = new Histogram();
+    private final Histogram _updateTime = new Histogram();
+    private final Histogram _updateLines = new Histogram();
+    private final Histogram _hitTests = new Histogram();
+    private final Histogram _pasteTime = new Histogram();
+    private final Histogram _pasteSize = new Histogram();
+    private final Histogram _deleteTime = new Histogram();
+    private final Histogram _deleteSize = new Histogram();
+    private final Histogram _indexTime = new Histogram();
+    private final Histogram _indexMemory = new Histogram();
+    private final Histogram _loadTime = new Histogram();
+    private final Histogram _saveTime = new Histogram();
+    private final Histogram _loadBytes = new Histogram();
+    private final Histogram _saveBytes = new Histogram();
+
+    /**
+     * Makes the metrics readable over JMX. Failing to is reported and otherwise ignored.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("editor:type=EditorMetrics"));
+        } catch (JMException e) {
+            System.out.println("Unable to register editor metrics; exception was: " + e);
+        }
+    }
+
+    public void keystroke(long latency) {
+        _keystrokeLatency.record(latency);
+        KeystrokeEvent event = new KeystrokeEvent();
+        if (event.shouldCommit()) {
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param full whether the whole document was laid out, or only the lines around an edit
+     * @param lines lines the layout produced
+     */
+    public void layout(boolean full, long time, int lines) {
+        if (full) {
+            _formatTime.record(time);
+            _formatLines.record(lines);
+        } else {
+            _updateTime.record(time);
+            _updateLines.record(lines);
+        }
+        LayoutEvent event = new LayoutEvent();
+        if (event.shouldCommit()) {
+            event.full = full;
+            event.time = time;
+            event.lines = lines;
+            event.commit();
+        }
+    }
+
+    public void mouseEvent(int hitTests) {
+        _hitTests.record(hitTests);
+        MouseEvent event = new MouseEvent();
+        if (event.shouldCommit()) {
+            event.hitTests = hitTests;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param paste true for a paste, false for deleting a selection
+     */
+    public void edit(boolean paste, int length, long time) {
+        if (paste) {
+            _pasteTime.record(time);
+            _pasteSize.record(length);
+        } else {
+            _deleteTime.record(time);
+            _deleteSize.record(length);
+        }
+        EditEvent event = new EditEvent();
+        if (event.shouldCommit()) {
+            event.paste = paste;
+            event.length = length;
+            event.time = time;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param time how long the background build of a search index took
+     * @param bytes memory the index holds
+     */
+    public void index(long time, long bytes) {
+        _indexTime.record(time);
+        _indexMemory.record(bytes);
+        IndexEvent event = new IndexEvent();
+        if (event.shouldCommit()) {
+            event.time = time;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param save true for a save, false for a load
+     */
+    public void file(boolean save, long bytes, long time) {
+        if (save) {
+            _saveTime.record(time);
+            _saveBytes.record(bytes);
+        } else {
+            _loadTime.record(time);
+            _loadBytes.record(bytes);
+        }
+        FileEvent event = new FileEvent();
+        if (event.shouldCommit()) {
+            event.save = save;
+            event.bytes = bytes;
+            event.time = time;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Histogram getKeystrokeLatency() {
+        return _keystrokeLatency;
+    }
+
+    @Override
+    public Histogram getFormatTime() {
+        return _formatTime;
+    }
+
+    @Override
+    public Histogram getFormatLines() {
+        return _formatLines;
+    }
+
+    @Override
+    public Histogram getUpdateTime() {
+        return _updateTime;
+    }
+
+    @Override
+    public Histogram getUpdateLines() {
+        return _updateLines;
+    }
+
+    @Override
+    public Histogram getHitTestsPerMouseEvent() {
+        return _hitTests;
+    }
+
+    @Override
+    public Histogram getPasteTime() {
+        return _pasteTime;
+    }
+
+    @Override
+    public Histogram getPasteSize() {
+        return _pasteSize;
+    }
+
+    @Override
+    public Histogram getDeleteTime() {
+        return _deleteTime;
+    }
+
+    @Override
+    public Histogram getDeleteSize() {
+        return _deleteSize;
+    }
+
+    @Override
+    public Histogram getIndexBuildTime() {
+        return _indexTime;
+    }
+
+    @Override
+    public Histogram getIndexMemory() {
+        return _indexMemory;
+    }
+
+    @Override
+    public double getLoadThroughput() {
+        return throughput(_loadBytes, _loadTime);
+    }
+
+    @Override
+    public double getSaveThroughput() {
+        return throughput(_saveBytes, _saveTime);
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : histograms()) {
+            histogram.reset();
+        }
+    }
+
+    public void printSummary() {
+        printTimes("keystroke to layout", _keystrokeLatency);
+        printTimes("format", _formatTime);
+        printCounts("format lines", _formatLines);
+        printTimes("update", _updateTime);
+        printCounts("update lines", _updateLines);
+        printCounts("hit tests per mouse event", _hitTests);
+        printTimes("paste", _pasteTime);
+        printCounts("paste chars", _pasteSize);
+        printTimes("delete", _deleteTime);
+        printCounts("delete chars", _deleteSize);
+        printTimes("index build", _indexTime);
+        printCounts("index bytes", _indexMemory);
+        if (_loadTime.getCount() > 0) {
+            System.out.printf("load: %d files, %.1f MB/s%n", _loadTime.getCount(), getLoadThroughput());
+        }
+        if (_saveTime.getCount() > 0) {
+            System.out.printf("save: %d files, %.1f MB/s%n", _saveTime.getCount(), getSaveThroughput());
+        }
+    }
+
+    private Histogram[] histograms() {
+        return new Histogram[] {_keystrokeLatency, _formatTime, _formatLines, _updateTime, _updateLines,
+                _hitTests, _pasteTime, _pasteSize, _deleteTime, _deleteSize, _indexTime, _indexMemory, _loadTime,
+                _saveTime, _loadBytes, _saveBytes};
+    }
+
+    private static void printTimes(String name, Histogram histogram) {
+        if (histogram.getCount() > 0) {
+            System.out.printf("%s: %d, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", name,
+                    histogram.getCount(), histogram.getMean() / 1e6, histogram.getP50() / 1e6,
+                    histogram.getP99() / 1e6, histogram.getMax() / 1e6);
+        }
+    }
+
+    private static void printCounts(String name, Histogram histogram) {
+        if (histogram.getCount() > 0) {
+            System.out.printf("%s: %d, mean %d, p50 %d, p99 %d, max %d%n", name, histogram.getCount(),
+                    histogram.getMean(), histogram.getP50(), histogram.getP99(), histogram.getMax());
+        }
+    }
+
+    private static double throughput(Histogram bytes, Histogram time) {
+        long nanos = time.getTotal();
+        return nanos == 0 ? 0 : bytes.getTotal() / (1024.0 * 1024) / (nanos / 1e9);
+    }
+}
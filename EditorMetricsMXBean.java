@@ -0,0 +1,56 @@
+package editor;
+
+/**
+ * What EditorMetrics shows over JMX, as editor:type=EditorMetrics. Each histogram shows up as its
+ * count, mean, p50, p99 and max. Times are in nanoseconds, sizes in characters.
+ */
+public interface EditorMetricsMXBean {
+
+    /**
+     * From a key event to the pulse that has laid out and drawn its effect.
+     */
+    Histogram getKeystrokeLatency();
+
+    Histogram getFormatTime();
+
+    Histogram getFormatLines();
+
+    Histogram getUpdateTime();
+
+    /**
+     * Lines re-wrapped by each incremental update.
+     */
+    Histogram getUpdateLines();
+
+    Histogram getHitTestsPerMouseEvent();
+
+    Histogram getPasteTime();
+
+    Histogram getPasteSize();
+
+    Histogram getDeleteTime();
+
+    Histogram getDeleteSize();
+
+    /**
+     * Background builds of the search index, which only large documents get.
+     */
+    Histogram getIndexBuildTime();
+
+    /**
+     * Bytes each search index held when it was built.
+     */
+    Histogram getIndexMemory();
+
+    /**
+     * @return megabytes read per second, over all loads so far
+     */
+    double getLoadThroughput();
+
+    /**
+     * @return megabytes written per second, over all saves so far
+     */
+    double getSaveThroughput();
+
+    void reset();
+}
@@ -0,0 +1,27 @@
+package editor;
+
+/**
+ * Metrics in which every character advances by the same amount. Layouts made with it don't depend
+ * on installed fonts or on a running toolkit, so they come out the same in tests, in benchmarks
+ * and on machines without a display.
+ */
+public class FixedWidthFontMetrics implements FontMetrics {
+
+    private final int _advance;
+    private final int _lineHeight;
+
+    public FixedWidthFontMetrics(int advance, int lineHeight) {
+        _advance = advance;
+        _lineHeight = lineHeight;
+    }
+
+    @Override
+    public int advance(int codePoint) {
+        return _advance;
+    }
+
+    @Override
+    public int getLineHeight() {
+        return _lineHeight;
+    }
+}
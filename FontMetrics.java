@@ -0,0 +1,16 @@
+package editor;
+
+/**
+ * What layout needs to know about a font: how far each character advances, in whole pixels, and
+ * how far apart lines are. Nothing here depends on a UI toolkit.
+ *
+ * A full reflow wraps paragraphs on several threads at once. It asks for every character outside
+ * Latin-1 on its own thread first, so advance only has to be safe to call concurrently for
+ * characters it has already been asked for.
+ */
+public interface FontMetrics {
+
+    int advance(int codePoint);
+
+    int getLineHeight();
+}
@@ -0,0 +1,94 @@
+package editor;
+
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JavaFX implementation of FontMetrics: advance widths of characters in one font, shared by
+ * everything that lays out, hit tests or draws text. Latin-1 is measured up front into a flat
+ * table; anything else is measured the first time it is asked for and kept in a map. Only the FX
+ * thread measures, with one shared Text node; layout threads only look up widths that a reflow
+ * measured before starting them.
+ */
+public class GlyphMetrics implements FontMetrics {
+
+    private static final int LATIN_1 = 256;
+    private static final ConcurrentHashMap<String, GlyphMetrics> CACHE = new ConcurrentHashMap<>();
+    private static final Text MEASURE = new Text();
+
+    private final Font _font;
+    private final int _lineHeight;
+    private final double[] _latin1;
+    private final ConcurrentHashMap<Integer, Double> _others;
+
+    private GlyphMetrics(String fontName, int fontSize) {
+        _font = new Font(fontName, fontSize);
+        _lineHeight = fontSize;
+        _latin1 = new double[LATIN_1];
+        _others = new ConcurrentHashMap<>();
+        for (int c = 0; c < LATIN_1; c += 1) {
+            _latin1[c] = measure(c);
+        }
+    }
+
+    /**
+     * Returns the shared metrics for a font, measuring it the first time it is used. Metrics are
+     * kept for every size asked for, so zooming back and forth creates no fonts and measures
+     * nothing.
+     */
+    public static GlyphMetrics get(String fontName, int fontSize) {
+        String key = fontName + "/" + fontSize;
+        GlyphMetrics metrics = CACHE.get(key);
+        if (metrics == null) {
+            metrics = new GlyphMetrics(fontName, fontSize);
+            GlyphMetrics existing = CACHE.putIfAbsent(key, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    public Font getFont() {
+        return _font;
+    }
+
+    public double width(int codePoint) {
+        if (codePoint < LATIN_1) {
+            return _latin1[codePoint];
+        }
+        Double width = _others.get(codePoint);
+        if (width == null) {
+            width = measure(codePoint);
+            _others.put(codePoint, width);
+        }
+        return width;
+    }
+
+    /**
+     * @return width rounded to the whole pixels layout works in
+     */
+    @Override
+    public int advance(int codePoint) {
+        return (int) (width(codePoint) + 0.5);
+    }
+
+    /**
+     * Lines are as tall as the font size.
+     */
+    @Override
+    public int getLineHeight() {
+        return _lineHeight;
+    }
+
+    /**
+     * Must run on the FX thread, like anything else that touches a Text node.
+     */
+    private double measure(int codePoint) {
+        MEASURE.setFont(_font);
+        MEASURE.setText(new String(Character.toChars(codePoint)));
+        return MEASURE.getLayoutBounds().getWidth();
+    }
+}
@@ -0,0 +1,109 @@
+package editor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of non-negative values, such as durations in nanoseconds or sizes in characters, in
+ * buckets whose width grows with the value. Values below 64 are counted exactly and larger ones
+ * to within 1/32 of their value, so any value up to Long.MAX_VALUE fits in under 2000 buckets.
+ *
+ * Recording is an increment of a counter, without locking or allocation, so histograms can stay on
+ * in normal use. They may be read from another thread while they are being recorded to.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    private static final int BUCKET_COUNT = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong _count = new AtomicLong();
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        _counts.incrementAndGet(bucketOf(value));
+        _count.incrementAndGet();
+        _total.addAndGet(value);
+        long max = _max.get();
+        while (value > max && !_max.compareAndSet(max, value)) {
+            max = _max.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i += 1) {
+            _counts.set(i, 0);
+        }
+        _count.set(0);
+        _total.set(0);
+        _max.set(0);
+    }
+
+    public long getCount() {
+        return _count.get();
+    }
+
+    public long getTotal() {
+        return _total.get();
+    }
+
+    public long getMean() {
+        long count = _count.get();
+        return count == 0 ? 0 : _total.get() / count;
+    }
+
+    public long getP50() {
+        return valueAt(50);
+    }
+
+    public long getP99() {
+        return valueAt(99);
+    }
+
+    public long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * @return the largest value that counts the same as the one below which percentile percent of
+     * the recorded values are, or 0 if nothing was recorded
+     */
+    public long valueAt(double percentile) {
+        long count = _count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i += 1) {
+            seen += _counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    /**
+     * Keeps the top SUB_BITS bits of value. Values with fewer bits map to themselves, and each
+     * further bit length takes the next HALF buckets.
+     */
+    private static int bucketOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestInBucket(int bucket) {
+        if (bucket < 2 * HALF) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long top = bucket % HALF + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,112 @@
+package editor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Java: keywords, annotations, comments, string and character literals, text blocks and numbers.
+ * A line starts in state 1 inside a block comment, 2 inside a text block and 0 otherwise.
+ */
+public class JavaLexer implements Lexer {
+
+    private static final int CODE = 0;
+    private static final int BLOCK_COMMENT = 1;
+    private static final int TEXT_BLOCK = 2;
+    private static final int MAX_KEYWORD_LENGTH = 12;
+
+    private static final HashSet<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+            "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+            "new", "package", "private", "protected", "public", "record", "return", "sealed", "short",
+            "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient",
+            "try", "var", "void", "volatile", "while", "yield", "true", "false", "null"));
+
+    @Override
+    public int lexLine(char[] chars, int start, int end, int state, Tokens tokens) {
+        int i = start;
+        if (state == BLOCK_COMMENT) {
+            int close = indexOf(chars, i, end, "*/");
+            if (close < 0) {
+                tokens.add(i, end, Style.COMMENT);
+                return BLOCK_COMMENT;
+            }
+            tokens.add(i, close + 2, Style.COMMENT);
+            i = close + 2;
+        } else if (state == TEXT_BLOCK) {
+            int close = indexOf(chars, i, end, "\"\"\"");
+            if (close < 0) {
+                tokens.add(i, end, Style.STRING);
+                return TEXT_BLOCK;
+            }
+            tokens.add(i, close + 3, Style.STRING);
+            i = close + 3;
+        }
+        while (i < end) {
+            char c = chars[i];
+            char next = i + 1 < end ? chars[i + 1] : 0;
+            if (c == '/' && next == '/') {
+                tokens.add(i, end, Style.COMMENT);
+                return CODE;
+            } else if (c == '/' && next == '*') {
+                int close = indexOf(chars, i + 2, end, "*/");
+                if (close < 0) {
+                    tokens.add(i, end, Style.COMMENT);
+                    return BLOCK_COMMENT;
+                }
+                tokens.add(i, close + 2, Style.COMMENT);
+                i = close + 2;
+            } else if (c == '"' && indexOf(chars, i, Math.min(end, i + 3), "\"\"\"") == i) {
+                int close = indexOf(chars, i + 3, end, "\"\"\"");
+                if (close < 0) {
+                    tokens.add(i, end, Style.STRING);
+                    return TEXT_BLOCK;
+                }
+                tokens.add(i, close + 3, Style.STRING);
+                i = close + 3;
+            } else if (c == '"' || c == '\'') {
+                int stringEnd = Lexers.quotedEnd(chars, i, end, true);
+                tokens.add(i, stringEnd, Style.STRING);
+                i = stringEnd;
+            } else if (c >= '0' && c <= '9') {
+                int numberEnd = Lexers.numberEnd(chars, i, end);
+                tokens.add(i, numberEnd, Style.NUMBER);
+                i = numberEnd;
+            } else if (c == '@' && Character.isJavaIdentifierStart(next)) {
+                int wordEnd = identifierEnd(chars, i + 1, end);
+                tokens.add(i, wordEnd, Style.KEY);
+                i = wordEnd;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int wordEnd = identifierEnd(chars, i, end);
+                if (wordEnd - i <= MAX_KEYWORD_LENGTH && c >= 'a' && c <= 'z'
+                        && KEYWORDS.contains(new String(chars, i, wordEnd - i))) {
+                    tokens.add(i, wordEnd, Style.KEYWORD);
+                }
+                i = wordEnd;
+            } else {
+                i += 1;
+            }
+        }
+        return CODE;
+    }
+
+    private static int identifierEnd(char[] chars, int start, int end) {
+        int i = start;
+        while (i < end && Character.isJavaIdentifierPart(chars[i])) {
+            i += 1;
+        }
+        return i;
+    }
+
+    /**
+     * @return where text starts in chars[start, end), or -1
+     */
+    private static int indexOf(char[] chars, int start, int end, String text) {
+        for (int i = start; i + text.length() <= end; i += 1) {
+            if (Lexers.matches(chars, i, i + text.length(), text)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
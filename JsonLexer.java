@@ -0,0 +1,39 @@
+package editor;
+
+/**
+ * JSON: strings, with the ones followed by a colon taken as keys, numbers, and true, false and
+ * null. Nothing in JSON spans lines, so every line starts in state 0.
+ */
+public class JsonLexer implements Lexer {
+
+    @Override
+    public int lexLine(char[] chars, int start, int end, int state, Tokens tokens) {
+        int i = start;
+        while (i < end) {
+            char c = chars[i];
+            if (c == '"') {
+                int stringEnd = Lexers.quotedEnd(chars, i, end, true);
+                int next = stringEnd;
+                while (next < end && (chars[next] == ' ' || chars[next] == '\t')) {
+                    next += 1;
+                }
+                tokens.add(i, stringEnd, next < end && chars[next] == ':' ? Style.KEY : Style.STRING);
+                i = stringEnd;
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                int numberEnd = Lexers.numberEnd(chars, i, end);
+                tokens.add(i, numberEnd, Style.NUMBER);
+                i = numberEnd;
+            } else if (Character.isLetter(c)) {
+                int wordEnd = Lexers.wordEnd(chars, i, end);
+                if (Lexers.matches(chars, i, wordEnd, "true") || Lexers.matches(chars, i, wordEnd, "false")
+                        || Lexers.matches(chars, i, wordEnd, "null")) {
+                    tokens.add(i, wordEnd, Style.KEYWORD);
+                }
+                i = wordEnd;
+            } else {
+                i += 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,65 @@
+package editor;
+
+import java.util.Arrays;
+
+/**
+ * Splits text into styled tokens one line at a time. Whatever a line leaves open for the next
+ * one, like a block comment, is passed along as an int state, so lexing can start again at any
+ * line whose starting state is known. State 0 is the start of the document, and states are never
+ * negative.
+ *
+ * A lexer is called from a background thread and may be shared by several documents, so it must
+ * not keep anything between calls.
+ */
+public interface Lexer {
+
+    /**
+     * @param chars holds the line in [start, end), without its newline
+     * @param state what the line starts in
+     * @param tokens receives the tokens of the line, in order
+     * @return what the next line starts in
+     */
+    int lexLine(char[] chars, int start, int end, int state, Tokens tokens);
+
+    /**
+     * Tokens of one line, as start and end offsets from the start of the line and a style. Text
+     * between tokens is plain.
+     */
+    class Tokens {
+        private int[] _tokens = new int[48];
+        private int _size;
+        private int _lineStart;
+
+        void reset(int lineStart) {
+            _lineStart = lineStart;
+            _size = 0;
+        }
+
+        /**
+         * Styles chars[start, end), where the offsets are the ones passed to lexLine. Plain and
+         * empty tokens are left out.
+         */
+        public void add(int start, int end, Style style) {
+            if (style == Style.PLAIN || start >= end) {
+                return;
+            }
+            if (_size + 3 > _tokens.length) {
+                _tokens = Arrays.copyOf(_tokens, _tokens.length * 2);
+            }
+            _tokens[_size] = start - _lineStart;
+            _tokens[_size + 1] = end - _lineStart;
+            _tokens[_size + 2] = style.ordinal();
+            _size += 3;
+        }
+
+        /**
+         * @return the state the line starts in, followed by its tokens
+         */
+        int[] toArray(int state) {
+            int[] line = new int[_size + 1];
+            line[0] = state;
+            System.arraycopy(_tokens, 0, line, 1, _size);
+            return line;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package editor;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Which lexer colors which kind of file, by file name extension. More can be registered before
+ * files are opened.
+ */
+public class Lexers {
+
+    private static final HashMap<String, Lexer> _lexers = new HashMap<>();
+
+    static {
+        register("json", new JsonLexer());
+        register("yaml", new YamlLexer());
+        register("yml", new YamlLexer());
+        register("java", new JavaLexer());
+        register("log", new LogLexer());
+    }
+
+    private Lexers() {
+    }
+
+    public static synchronized void register(String extension, Lexer lexer) {
+        _lexers.put(extension.toLowerCase(Locale.ROOT), lexer);
+    }
+
+    /**
+     * @return the lexer for the extension of file, or null if it is shown without colors
+     */
+    public static synchronized Lexer forFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        return _lexers.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return end of the run of letters, digits and underscores at start
+     */
+    static int wordEnd(char[] chars, int start, int end) {
+        int i = start;
+        while (i < end && (Character.isLetterOrDigit(chars[i]) || chars[i] == '_')) {
+            i += 1;
+        }
+        return i;
+    }
+
+    /**
+     * @return end of the number at start, including a sign, fraction, exponent and suffix letters
+     */
+    static int numberEnd(char[] chars, int start, int end) {
+        int i = start;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) {
+            i += 1;
+        }
+        while (i < end && (Character.isLetterOrDigit(chars[i]) || chars[i] == '.' || chars[i] == '_'
+                || ((chars[i] == '-' || chars[i] == '+') && (chars[i - 1] == 'e' || chars[i - 1] == 'E')))) {
+            i += 1;
+        }
+        return i;
+    }
+
+    /**
+     * @param escapes whether a backslash escapes the character after it
+     * @return end of the string that starts with the quote at start, just past the closing quote,
+     * or end if the line ends first
+     */
+    static int quotedEnd(char[] chars, int start, int end, boolean escapes) {
+        char quote = chars[start];
+        int i = start + 1;
+        while (i < end) {
+            char c = chars[i];
+            i += 1;
+            if (c == '\\' && escapes) {
+                i += 1;
+            } else if (c == quote) {
+                return Math.min(i, end);
+            }
+        }
+        return end;
+    }
+
+    static boolean matches(char[] chars, int start, int end, String word) {
+        if (end - start != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i += 1) {
+            if (chars[start + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
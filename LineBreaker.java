@@ -0,0 +1,102 @@
+package editor;
+
+/**
+ * Greedy word wrap in one pass over a run of text. A line may break after a space, after a hyphen
+ * that follows a letter or digit on the same line, and after a newline. A word wider than the line
+ * is broken where it overflows. One space at the end of a line hangs past the edge instead of
+ * wrapping; a longer run of spaces wraps like anything else, so no line gets much wider than the
+ * window.
+ *
+ * The breaker keeps the last break opportunity of the current line and the width up to it, so
+ * when a word overflows, the width of the part carried over to the next line is already known.
+ * Every character is read and measured once, however many lines its paragraph takes.
+ */
+public class LineBreaker {
+
+    private final FontMetrics _metrics;
+    private final int _width;
+
+    private Document.CharIterator _iterator;
+    private int _end;
+    private int _lineStart;
+    private int _x;
+    private int _lastBreak;
+    private int _breakX;
+    private char _previous;
+
+    // The character that overflowed the last line, which is the first one to place on the next.
+    private boolean _held;
+    private int _heldIndex;
+    private char _heldChar;
+    private int _heldWidth;
+
+    public LineBreaker(FontMetrics metrics, int width) {
+        _metrics = metrics;
+        _width = width;
+    }
+
+    /**
+     * Starts over at start, which has to be where a line starts, reading from iterator up to end.
+     */
+    public void reset(Document.CharIterator iterator, int start, int end) {
+        _iterator = iterator;
+        _end = end;
+        _previous = '\n';
+        _held = false;
+        startLine(start, 0);
+    }
+
+    /**
+     * Finishes the current line.
+     * @return offset where the following line starts, or end if the line runs up to it
+     */
+    public int next() {
+        while (_held || _iterator.hasNext()) {
+            int index;
+            char c;
+            int width;
+            if (_held) {
+                _held = false;
+                index = _heldIndex;
+                c = _heldChar;
+                width = _heldWidth;
+            } else {
+                index = _iterator.getIndex();
+                c = _iterator.next();
+                width = c == '\n' ? 0 : _metrics.advance(c);
+            }
+            if (c == '\n') {
+                _previous = c;
+                return startLine(index + 1, 0);
+            }
+            // _x past the edge means a space is already hanging.
+            if (_x + width > _width && index > _lineStart && (c != ' ' || _x > _width)) {
+                _held = true;
+                _heldIndex = index;
+                _heldChar = c;
+                _heldWidth = width;
+                if (_lastBreak > _lineStart) {
+                    return startLine(_lastBreak, _x - _breakX);
+                }
+                return startLine(index, 0);
+            }
+            _x += width;
+            if (c == ' ' || (c == '-' && index > _lineStart && Character.isLetterOrDigit(_previous))) {
+                _lastBreak = index + 1;
+                _breakX = _x;
+            }
+            _previous = c;
+        }
+        return _end;
+    }
+
+    /**
+     * @param x width of what the line already holds
+     */
+    private int startLine(int start, int x) {
+        _lineStart = start;
+        _x = x;
+        _lastBreak = -1;
+        return start;
+    }
+}
@@ -0,0 +1,142 @@
+package editor;
+
+/**
+ * Offsets at which visual lines start, in a gap buffer of ints. Line 0 always starts at 0.
+ *
+ * An edit replaces a run of lines and shifts every line after it by the same amount. Instead of
+ * adding that amount to the rest of the array, the shift is kept as a pending step: the lines
+ * after _stepLine are stored without it and get it added when read. The step only gets written
+ * into the array when a later edit is somewhere else, and then only across the lines between the
+ * two edits. Typing in one place therefore costs nothing per edit beyond the re-wrapped lines,
+ * and looking a line up by offset is a binary search.
+ */
+public class LineIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] _starts;
+    private int _gapStart;
+    private int _gapLength;
+
+    private int _stepLine;
+    private int _stepDelta;
+
+    public LineIndex() {
+        _starts = new int[MIN_CAPACITY];
+        clear();
+    }
+
+    /**
+     * Goes back to a single line starting at 0.
+     */
+    public void clear() {
+        _starts[0] = 0;
+        _gapStart = 1;
+        _gapLength = _starts.length - 1;
+        _stepLine = 0;
+        _stepDelta = 0;
+    }
+
+    public int getLineCount() {
+        return _starts.length - _gapLength;
+    }
+
+    public int getLineStart(int line) {
+        int start = _starts[line < _gapStart ? line : line + _gapLength];
+        return line > _stepLine ? start + _stepDelta : start;
+    }
+
+    /**
+     * @return the last line that starts at or before offset
+     */
+    public int getLineOfOffset(int offset) {
+        int low = 0;
+        int high = getLineCount() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (getLineStart(middle) <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Adds a line after the last one.
+     */
+    public void add(int start) {
+        int lineCount = getLineCount();
+        moveStep(lineCount - 1);
+        moveGap(lineCount);
+        if (_gapLength == 0) {
+            grow(1);
+        }
+        _starts[_gapStart] = start;
+        _gapStart += 1;
+        _gapLength -= 1;
+        _stepLine = lineCount;
+    }
+
+    /**
+     * Replaces removed lines starting at line with the first count of starts, then moves every line
+     * after them by delta.
+     */
+    public void replace(int line, int removed, int[] starts, int count, int delta) {
+        moveStep(line + removed - 1);
+        moveGap(line);
+        _gapLength += removed;
+        if (count > _gapLength) {
+            grow(count);
+        }
+        System.arraycopy(starts, 0, _starts, _gapStart, count);
+        _gapStart += count;
+        _gapLength -= count;
+        _stepLine = line + count - 1;
+        _stepDelta += delta;
+    }
+
+    /**
+     * Writes the pending step into the lines between its old position and line, so that it applies
+     * to exactly the lines after line.
+     */
+    private void moveStep(int line) {
+        if (_stepDelta == 0) {
+            _stepLine = line;
+            return;
+        }
+        while (_stepLine < line) {
+            _stepLine += 1;
+            _starts[physical(_stepLine)] += _stepDelta;
+        }
+        while (_stepLine > line) {
+            _starts[physical(_stepLine)] -= _stepDelta;
+            _stepLine -= 1;
+        }
+    }
+
+    private void moveGap(int line) {
+        if (line < _gapStart) {
+            System.arraycopy(_starts, line, _starts, line + _gapLength, _gapStart - line);
+        } else if (line > _gapStart) {
+            System.arraycopy(_starts, _gapStart + _gapLength, _starts, _gapStart, line - _gapStart);
+        }
+        _gapStart = line;
+    }
+
+    private void grow(int needed) {
+        int lineCount = getLineCount();
+        int capacity = Math.max(_starts.length * 2, lineCount + needed);
+        int[] grown = new int[capacity];
+        int tail = lineCount - _gapStart;
+        System.arraycopy(_starts, 0, grown, 0, _gapStart);
+        System.arraycopy(_starts, _gapStart + _gapLength, grown, capacity - tail, tail);
+        _starts = grown;
+        _gapLength = capacity - lineCount;
+    }
+
+    private int physical(int line) {
+        return line < _gapStart ? line : line + _gapLength;
+    }
+}
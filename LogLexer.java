@@ -0,0 +1,82 @@
+package editor;
+
+/**
+ * Log files: the timestamp at the start of a line, levels such as ERROR and WARN, quoted strings,
+ * and the frames of stack traces. Every line stands alone, so the state is always 0.
+ */
+public class LogLexer implements Lexer {
+
+    @Override
+    public int lexLine(char[] chars, int start, int end, int state, Tokens tokens) {
+        int first = start;
+        while (first < end && (chars[first] == ' ' || chars[first] == '\t')) {
+            first += 1;
+        }
+        if (first > start && (startsWith(chars, first, end, "at ") || startsWith(chars, first, end, "... "))
+                || startsWith(chars, first, end, "Caused by: ")) {
+            tokens.add(first, end, Style.COMMENT);
+            return 0;
+        }
+        int i = first;
+        if (i < end && chars[i] >= '0' && chars[i] <= '9') {
+            i = timestampEnd(chars, i, end);
+            tokens.add(first, i, Style.NUMBER);
+        }
+        while (i < end) {
+            char c = chars[i];
+            if (c == '"') {
+                int stringEnd = Lexers.quotedEnd(chars, i, end, true);
+                tokens.add(i, stringEnd, Style.STRING);
+                i = stringEnd;
+            } else if (c >= 'A' && c <= 'Z') {
+                int wordEnd = Lexers.wordEnd(chars, i, end);
+                tokens.add(i, wordEnd, levelStyle(chars, i, wordEnd));
+                i = wordEnd;
+            } else if (Character.isLetterOrDigit(c)) {
+                i = Lexers.wordEnd(chars, i, end);
+            } else {
+                i += 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return end of a date and time like 2024-05-01 12:00:00,123 or 2024-05-01T12:00:00.123Z
+     */
+    private static int timestampEnd(char[] chars, int start, int end) {
+        int i = start;
+        while (i < end) {
+            char c = chars[i];
+            boolean digitAfter = i + 1 < end && chars[i + 1] >= '0' && chars[i + 1] <= '9';
+            if ((c >= '0' && c <= '9') || ((c == '-' || c == ':' || c == '.' || c == ',' || c == '/' || c == ' '
+                    || c == 'T' || c == '+') && digitAfter)) {
+                i += 1;
+            } else if (c == 'Z') {
+                return i + 1;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static Style levelStyle(char[] chars, int start, int end) {
+        if (Lexers.matches(chars, start, end, "ERROR") || Lexers.matches(chars, start, end, "FATAL")
+                || Lexers.matches(chars, start, end, "SEVERE")) {
+            return Style.ERROR;
+        }
+        if (Lexers.matches(chars, start, end, "WARN") || Lexers.matches(chars, start, end, "WARNING")) {
+            return Style.WARNING;
+        }
+        if (Lexers.matches(chars, start, end, "INFO") || Lexers.matches(chars, start, end, "DEBUG")
+                || Lexers.matches(chars, start, end, "TRACE")) {
+            return Style.KEYWORD;
+        }
+        return Style.PLAIN;
+    }
+
+    private static boolean startsWith(char[] chars, int start, int end, String text) {
+        return end - start >= text.length() && Lexers.matches(chars, start, start + text.length(), text);
+    }
+}
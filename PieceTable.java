@@ -0,0 +1,415 @@
+package editor;
+
+import java.util.ArrayDeque;
+import java.util.NoSuchElementException;
+
+/**
+ * Piece table document. The text is a sequence of pieces, each one a range of an immutable
+ * char buffer, kept in a treap ordered by position and annotated with subtree lengths, so that
+ * finding, inserting and deleting at any offset takes O(log n).
+ *
+ * Nodes are never modified once built; edits copy the path they touch. That keeps old roots valid,
+ * which is what lets subSequence hand out views without copying any characters.
+ */
+public class PieceTable implements Document {
+
+    private static final int MIN_ADD_CAPACITY = 1024;
+
+    private Node _root;
+    private char[] _addBuffer;
+    private int _addLength;
+    private int _seed = 0x2545F491;
+
+    private Node _cachedRoot;
+    private Node _cachedNode;
+    private int _cachedStart;
+
+    public PieceTable() {
+        _addBuffer = new char[MIN_ADD_CAPACITY];
+    }
+
+    public PieceTable(CharSequence contents) {
+        this();
+        insert(0, contents);
+    }
+
+    private static final class Node {
+        private final char[] _buffer;
+        private final int _start;
+        private final int _length;
+        private final int _priority;
+        private final Node _left;
+        private final Node _right;
+        private final int _size;
+
+        Node(char[] buffer, int start, int length, int priority, Node left, Node right) {
+            _buffer = buffer;
+            _start = start;
+            _length = length;
+            _priority = priority;
+            _left = left;
+            _right = right;
+            _size = size(left) + length + size(right);
+        }
+
+        Node withLeft(Node left) {
+            return new Node(_buffer, _start, _length, _priority, left, _right);
+        }
+
+        Node withRight(Node right) {
+            return new Node(_buffer, _start, _length, _priority, _left, right);
+        }
+    }
+
+    @Override
+    public int length() {
+        return size(_root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        checkIndex(index, length());
+        if (_cachedRoot != _root || index < _cachedStart || index >= _cachedStart + _cachedNode._length) {
+            Node node = _root;
+            int start = 0;
+            while (true) {
+                int leftSize = size(node._left);
+                if (index < start + leftSize) {
+                    node = node._left;
+                } else if (index >= start + leftSize + node._length) {
+                    start += leftSize + node._length;
+                    node = node._right;
+                } else {
+                    _cachedStart = start + leftSize;
+                    _cachedNode = node;
+                    _cachedRoot = _root;
+                    break;
+                }
+            }
+        }
+        return _cachedNode._buffer[_cachedNode._start + index - _cachedStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkRange(start, end, length());
+        return new Slice(_root, start, end);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dst, int dstBegin) {
+        checkRange(start, end, length());
+        copy(_root, start, end, dst, dstBegin);
+    }
+
+    /**
+     * Costs nothing: the snapshot holds on to the current root, which no later edit modifies.
+     */
+    @Override
+    public Snapshot snapshot() {
+        return new Slice(_root, 0, length());
+    }
+
+    @Override
+    public CharIterator iterator(int offset) {
+        if (offset < 0 || offset > length()) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length());
+        }
+        return new PieceIterator(_root, offset, length());
+    }
+
+    @Override
+    public void insert(int offset, CharSequence text) {
+        int length = text.length();
+        if (offset < 0 || offset > length()) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length());
+        }
+        if (length == 0) {
+            return;
+        }
+        ensureAddCapacity(length);
+        int start = _addLength;
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, _addBuffer, start);
+        } else {
+            for (int i = 0; i < length; i += 1) {
+                _addBuffer[start + i] = text.charAt(i);
+            }
+        }
+        _addLength += length;
+
+        Node[] parts = split(_root, offset);
+        Node left = parts[0];
+        Node last = rightmost(left);
+        if (last != null && last._buffer == _addBuffer && last._start + last._length == start) {
+            // Typing appends to the add buffer right after the previous piece, so grow that piece.
+            left = extendRightmost(left, length);
+        } else {
+            left = merge(left, new Node(_addBuffer, start, length, nextPriority(), null, null));
+        }
+        _root = merge(left, parts[1]);
+    }
+
+    /**
+     * The array becomes a piece of its own, so loading a file copies nothing.
+     */
+    @Override
+    public void append(char[] chars, int start, int length) {
+        checkRange(start, start + length, chars.length);
+        if (length == 0) {
+            return;
+        }
+        _root = merge(_root, new Node(chars, start, length, nextPriority(), null, null));
+    }
+
+    @Override
+    public void delete(int offset, int length) {
+        checkRange(offset, offset + length, length());
+        if (length == 0) {
+            return;
+        }
+        Node[] head = split(_root, offset);
+        Node[] tail = split(head[1], length);
+        _root = merge(head[0], tail[1]);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length()];
+        copy(_root, 0, chars.length, chars, 0);
+        return new String(chars);
+    }
+
+    private void ensureAddCapacity(int extra) {
+        if (_addLength + extra <= _addBuffer.length) {
+            return;
+        }
+        int capacity = Math.max(_addBuffer.length * 2, _addLength + extra);
+        char[] grown = new char[capacity];
+        System.arraycopy(_addBuffer, 0, grown, 0, _addLength);
+        // Pieces keep pointing at the old array, which still holds their characters.
+        _addBuffer = grown;
+    }
+
+    private int nextPriority() {
+        _seed ^= _seed << 13;
+        _seed ^= _seed >>> 17;
+        _seed ^= _seed << 5;
+        return _seed;
+    }
+
+    private Node[] split(Node node, int offset) {
+        if (node == null) {
+            return new Node[] {null, null};
+        }
+        int leftSize = size(node._left);
+        if (offset <= leftSize) {
+            Node[] parts = split(node._left, offset);
+            parts[1] = node.withLeft(parts[1]);
+            return parts;
+        } else if (offset >= leftSize + node._length) {
+            Node[] parts = split(node._right, offset - leftSize - node._length);
+            parts[0] = node.withRight(parts[0]);
+            return parts;
+        }
+        // Both halves keep the piece's priority, which is at least that of anything under it and
+        // no more than that of anything above it, so each half is still a valid heap.
+        int cut = offset - leftSize;
+        Node first = new Node(node._buffer, node._start, cut, node._priority, node._left, null);
+        Node second = new Node(node._buffer, node._start + cut, node._length - cut, node._priority, null, node._right);
+        return new Node[] {first, second};
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        } else if (left._priority > right._priority) {
+            return left.withRight(merge(left._right, right));
+        }
+        return right.withLeft(merge(left, right._left));
+    }
+
+    private static Node rightmost(Node node) {
+        if (node == null) {
+            return null;
+        }
+        while (node._right != null) {
+            node = node._right;
+        }
+        return node;
+    }
+
+    private static Node extendRightmost(Node node, int extra) {
+        if (node._right == null) {
+            return new Node(node._buffer, node._start, node._length + extra, node._priority, node._left, null);
+        }
+        return node.withRight(extendRightmost(node._right, extra));
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node._size;
+    }
+
+    private static void copy(Node node, int start, int end, char[] dst, int dstBegin) {
+        while (node != null && start < end) {
+            int leftSize = size(node._left);
+            if (start < leftSize) {
+                int leftEnd = Math.min(end, leftSize);
+                copy(node._left, start, leftEnd, dst, dstBegin);
+                dstBegin += leftEnd - start;
+                start = leftEnd;
+            }
+            int pieceEnd = leftSize + node._length;
+            if (start < pieceEnd && start < end) {
+                int count = Math.min(end, pieceEnd) - start;
+                System.arraycopy(node._buffer, node._start + start - leftSize, dst, dstBegin, count);
+                dstBegin += count;
+                start += count;
+            }
+            start -= pieceEnd;
+            end -= pieceEnd;
+            node = node._right;
+        }
+    }
+
+    private static char charAt(Node node, int index) {
+        while (true) {
+            int leftSize = size(node._left);
+            if (index < leftSize) {
+                node = node._left;
+            } else if (index >= leftSize + node._length) {
+                index -= leftSize + node._length;
+                node = node._right;
+            } else {
+                return node._buffer[node._start + index - leftSize];
+            }
+        }
+    }
+
+    private static void checkIndex(int index, int length) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+    }
+
+    private static void checkRange(int start, int end, int length) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        }
+    }
+
+    /**
+     * Read-only view of [start, end) of the tree as it was when the view was made.
+     */
+    private static final class Slice implements Snapshot {
+        private final Node _root;
+        private final int _start;
+        private final int _end;
+
+        Slice(Node root, int start, int end) {
+            _root = root;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        public int length() {
+            return _end - _start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            checkIndex(index, length());
+            return PieceTable.charAt(_root, _start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            checkRange(start, end, length());
+            return new Slice(_root, _start + start, _start + end);
+        }
+
+        @Override
+        public void getChars(int start, int end, char[] dst, int dstBegin) {
+            checkRange(start, end, length());
+            copy(_root, _start + start, _start + end, dst, dstBegin);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length()];
+            copy(_root, _start, _end, chars, 0);
+            return new String(chars);
+        }
+    }
+
+    /**
+     * In-order walk over the pieces, keeping the ancestors still to visit on a stack.
+     */
+    private static final class PieceIterator implements CharIterator {
+        private final ArrayDeque<Node> _stack = new ArrayDeque<>();
+        private final int _end;
+        private Node _node;
+        private int _position;
+        private int _index;
+
+        PieceIterator(Node root, int offset, int end) {
+            _end = end;
+            _index = offset;
+            Node node = root;
+            while (node != null) {
+                int leftSize = size(node._left);
+                if (offset < leftSize) {
+                    _stack.push(node);
+                    node = node._left;
+                } else if (offset >= leftSize + node._length) {
+                    offset -= leftSize + node._length;
+                    node = node._right;
+                } else {
+                    _node = node;
+                    _position = offset - leftSize;
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _index < _end;
+        }
+
+        @Override
+        public char next() {
+            if (_node == null || _position >= _node._length) {
+                advance();
+            }
+            _index += 1;
+            _position += 1;
+            return _node._buffer[_node._start + _position - 1];
+        }
+
+        @Override
+        public int getIndex() {
+            return _index;
+        }
+
+        private void advance() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node next = _node._right;
+            if (next == null) {
+                _node = _stack.pop();
+            } else {
+                while (next._left != null) {
+                    _stack.push(next);
+                    next = next._left;
+                }
+                _node = next;
+            }
+            _position = 0;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the edits made since a file was last saved, kept next to it as
+ * .name.journal, so a crash loses at most the last few hundred milliseconds of typing.
+ *
+ * Edits are appended to a buffer in memory as they happen. A background thread writes the buffer
+ * out and forces it to disk every COMMIT_MILLIS, so a burst of keystrokes costs one write and one
+ * sync. Each record is the offset, the number of characters deleted and the inserted text, with a
+ * checksum so a record torn by a crash is recognized and dropped.
+ *
+ * The journal starts with the length and modification time of the file it applies to. It is only
+ * replayed onto that exact file, and only if it was written after it. A successful save rewrites
+ * the journal with just the edits made after the snapshot that was saved.
+ *
+ * All the work on the file is done on a journal thread, which the journals of every open file can
+ * share, and the editing thread never waits for it. The journal file is only created once there
+ * is an edit to write to it.
+ */
+public class RecoveryJournal {
+
+    private static final int MAGIC = 0x45444a31;
+    private static final int HEADER_BYTES = 4 + 8 + 8;
+    private static final int RECORD_OVERHEAD = 4 + 4 + 4 + 4;
+    private static final long COMMIT_MILLIS = 250;
+
+    /**
+     * Called through the callback executor when the journal can't be written.
+     */
+    public interface Listener {
+        void journalFailed(IOException e);
+    }
+
+    private final File _file;
+    private final Path _journal;
+    private final Executor _callbacks;
+    private final Listener _listener;
+    private final ScheduledExecutorService _executor;
+    private ScheduledFuture<?> _commits;
+
+    // Guarded by this; filled on the editing thread, emptied by the journal thread.
+    private ByteBuffer _pending = ByteBuffer.allocate(4096);
+    private long _recorded;
+
+    // Only touched by the journal thread.
+    private FileChannel _channel;
+    private long _base;
+    private boolean _failed;
+    // The file the journal is tied to, for the header of a journal that doesn't exist yet.
+    private long _length;
+    private long _modified;
+
+    // Number of edits the last replay applied.
+    private int _replayed;
+
+    /**
+     * @param executor the journal thread, from newExecutor
+     * @param callbacks runs the listener, on the FX thread in the editor
+     */
+    public RecoveryJournal(File file, ScheduledExecutorService executor, Executor callbacks, Listener listener) {
+        _file = file.getAbsoluteFile();
+        _journal = new File(_file.getParentFile(), "." + _file.getName() + ".journal").toPath();
+        _executor = executor;
+        _callbacks = callbacks;
+        _listener = listener;
+    }
+
+    /**
+     * @return a single daemon thread for journals to run on, to be shut down once they are closed
+     */
+    public static ScheduledExecutorService newExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "recovery-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Replays a journal left behind by a crash onto document, which must hold the file as it is on
+     * disk, then starts journaling. A journal that doesn't belong to the file as it is now is
+     * thrown away, and so is whatever follows the last record that could be replayed.
+     * @return number of edits replayed
+     */
+    public int recover(Document document) throws IOException {
+        _replayed = 0;
+        long end = HEADER_BYTES;
+        if (Files.exists(_journal) && _journal.toFile().lastModified() >= _file.lastModified()) {
+            end = replay(document);
+        }
+        final int replayed = _replayed;
+        final long kept = end - HEADER_BYTES;
+        final long length = fileLength();
+        final long modified = _file.lastModified();
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                _length = length;
+                _modified = modified;
+                try {
+                    if (replayed > 0) {
+                        // New records go right after the replayed ones, over a torn tail.
+                        open();
+                        _channel.truncate(HEADER_BYTES + kept);
+                    } else {
+                        Files.deleteIfExists(_journal);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+        if (replayed > 0) {
+            synchronized (this) {
+                // The replayed records are still unsaved, so they count towards the next checkpoint.
+                _recorded += kept;
+            }
+        }
+        _commits = _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, COMMIT_MILLIS, COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+        return replayed;
+    }
+
+    /**
+     * Records that removed characters at offset were replaced by inserted. It reaches the disk with
+     * the next commit.
+     */
+    public synchronized void record(int offset, int removed, CharSequence inserted) {
+        int size = RECORD_OVERHEAD + 2 * inserted.length();
+        if (_pending.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(_pending.capacity() * 2, _pending.position() + size));
+            _pending.flip();
+            grown.put(_pending);
+            _pending = grown;
+        }
+        int start = _pending.position();
+        _pending.putInt(offset);
+        _pending.putInt(removed);
+        _pending.putInt(inserted.length());
+        for (int i = 0; i < inserted.length(); i += 1) {
+            _pending.putChar(inserted.charAt(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(_pending.array(), start, _pending.position() - start);
+        _pending.putInt((int) crc.getValue());
+        _recorded += size;
+    }
+
+    /**
+     * @return the point to compact up to once a save of the document as it is now has succeeded
+     */
+    public synchronized long checkpoint() {
+        return _recorded;
+    }
+
+    /**
+     * Drops the records up to checkpoint, which a save has made part of the file. Must be called
+     * while no other save of the file is running, since the file as it is now is what the rest of
+     * the journal gets tied to.
+     */
+    public void saved(final long checkpoint) {
+        final long length = fileLength();
+        final long modified = _file.lastModified();
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+                if (_channel == null) {
+                    // Nothing was written since the last save; a journal started later belongs to
+                    // the file as it is now.
+                    _length = length;
+                    _modified = modified;
+                    return;
+                }
+                if (_failed) {
+                    // Records were dropped, so the checkpoint doesn't match what is on disk.
+                    return;
+                }
+                try {
+                    long end = _channel.size();
+                    long from = HEADER_BYTES + checkpoint - _base;
+                    ByteBuffer tail = ByteBuffer.allocate((int) (end - from));
+                    while (tail.hasRemaining()) {
+                        _channel.read(tail, from + tail.position());
+                    }
+                    _channel.close();
+                    rewrite(length, modified, tail.array());
+                    _length = length;
+                    _modified = modified;
+                    _base = checkpoint;
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes out what is left and stops, on the journal thread; shutting the executor down and
+     * waiting for it makes sure that has happened. A journal with edits in it stays behind, to be
+     * replayed if the file is opened again without having been saved.
+     */
+    public void close() {
+        if (_commits != null) {
+            _commits.cancel(false);
+        }
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+                if (_channel == null) {
+                    return;
+                }
+                try {
+                    boolean empty = _channel.size() <= HEADER_BYTES;
+                    _channel.close();
+                    _channel = null;
+                    if (empty) {
+                        Files.deleteIfExists(_journal);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes and forces everything recorded so far. Runs on the journal thread.
+     */
+    private void commit() {
+        ByteBuffer pending;
+        synchronized (this) {
+            if (_pending.position() == 0) {
+                return;
+            }
+            pending = _pending;
+            _pending = ByteBuffer.allocate(4096);
+        }
+        if (_failed) {
+            return;
+        }
+        try {
+            if (_channel == null) {
+                rewrite(_length, _modified, new byte[0]);
+            }
+            pending.flip();
+            while (pending.hasRemaining()) {
+                _channel.write(pending);
+            }
+            _channel.force(false);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Replaces the journal with a header for the file as it is now followed by records, going
+     * through a temporary file so a crash leaves one journal or the other.
+     */
+    private void rewrite(long length, long modified, byte[] records) throws IOException {
+        Path temp = Files.createTempFile(_journal.getParent(), _journal.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putLong(length).putLong(modified).flip();
+                ByteBuffer body = ByteBuffer.wrap(records);
+                while (header.hasRemaining() || body.hasRemaining()) {
+                    channel.write(new ByteBuffer[] {header, body});
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, _journal, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, _journal, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        open();
+    }
+
+    /**
+     * Opens the journal to append to, and to read back from when it is compacted.
+     */
+    private void open() throws IOException {
+        _channel = FileChannel.open(_journal, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _channel.position(_channel.size());
+    }
+
+    /**
+     * Applies the records of the journal to document, stopping at the first one that is torn or
+     * doesn't fit the text. The number of records applied is left in _replayed.
+     * @return offset in the journal just past the last record applied
+     */
+    private long replay(Document document) throws IOException {
+        long size = Files.size(_journal);
+        long end = HEADER_BYTES;
+        long left = size - HEADER_BYTES;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_journal.toFile())))) {
+            if (in.readInt() != MAGIC || in.readLong() != fileLength() || in.readLong() != _file.lastModified()) {
+                return end;
+            }
+            byte[] record = new byte[RECORD_OVERHEAD];
+            while (true) {
+                in.readFully(record, 0, 12);
+                ByteBuffer fields = ByteBuffer.wrap(record);
+                int offset = fields.getInt();
+                int removed = fields.getInt();
+                int length = fields.getInt();
+                // The fields come from disk, so a torn record can hold anything; a length longer
+                // than the rest of the journal is not allocated for.
+                left -= 12;
+                if (offset < 0 || removed < 0 || length < 0 || (long) offset + removed > document.length()
+                        || 2L * length + 4 > left) {
+                    break;
+                }
+                left -= 2L * length + 4;
+                if (record.length < 12 + 2 * length + 4) {
+                    byte[] grown = new byte[12 + 2 * length + 4];
+                    System.arraycopy(record, 0, grown, 0, 12);
+                    record = grown;
+                }
+                in.readFully(record, 12, 2 * length + 4);
+                CRC32 crc = new CRC32();
+                crc.update(record, 0, 12 + 2 * length);
+                fields = ByteBuffer.wrap(record, 12, 2 * length + 4);
+                char[] inserted = new char[length];
+                fields.asCharBuffer().get(inserted);
+                fields.position(12 + 2 * length);
+                if (fields.getInt() != (int) crc.getValue()) {
+                    break;
+                }
+                document.delete(offset, removed);
+                document.insert(offset, new String(inserted));
+                _replayed += 1;
+                end = size - left;
+            }
+        } catch (EOFException e) {
+            // The last commit was cut short.
+        }
+        return end;
+    }
+
+    private long fileLength() {
+        return _file.exists() ? _file.length() : -1;
+    }
+
+    private void fail(final IOException e) {
+        if (_failed) {
+            return;
+        }
+        _failed = true;
+        _callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                _listener.journalFailed(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,454 @@
+package editor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds a pattern in a document without copying the document into a String. Literal patterns are
+ * matched with Horspool's algorithm over blocks of characters read out of the document; regular
+ * expressions run on a view of the document that reads it a block at a time.
+ *
+ * Replace-all builds the text from the first match to the end of the last one with every match
+ * replaced, so the editor can apply it as one splice, one re-wrap and one undo entry.
+ */
+public class SearchEngine {
+
+    private static final int BLOCK = 64 * 1024;
+
+    /**
+     * Replace-all as one edit: removedLength characters at offset become the inserted text.
+     */
+    public static class Replacement {
+        private final int _offset;
+        private final int _removedLength;
+        private final String _inserted;
+        private final int _count;
+
+        Replacement(int offset, int removedLength, String inserted, int count) {
+            _offset = offset;
+            _removedLength = removedLength;
+            _inserted = inserted;
+            _count = count;
+        }
+
+        public int getOffset() {
+            return _offset;
+        }
+
+        public int getRemovedLength() {
+            return _removedLength;
+        }
+
+        public String getInserted() {
+            return _inserted;
+        }
+
+        /**
+         * @return number of matches replaced
+         */
+        public int getCount() {
+            return _count;
+        }
+    }
+
+    private final boolean _matchCase;
+    private final Pattern _regex;
+    private final char[] _literal;
+    private final int[] _shifts;
+    private final int[] _backShifts;
+    private final char[] _buffer;
+    private final int[] _hashes;
+    private TrigramIndex _index;
+
+    private int _matchStart = -1;
+    private int _matchEnd = -1;
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if regex is set and pattern doesn't compile
+     */
+    public SearchEngine(String pattern, boolean matchCase, boolean regex) {
+        _matchCase = matchCase;
+        if (regex) {
+            int flags = Pattern.MULTILINE | (matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            _regex = Pattern.compile(pattern, flags);
+            _literal = null;
+            _shifts = null;
+            _backShifts = null;
+            _buffer = null;
+            _hashes = null;
+            return;
+        }
+        _regex = null;
+        int m = pattern.length();
+        _literal = new char[m];
+        for (int i = 0; i < m; i += 1) {
+            _literal[i] = fold(pattern.charAt(i));
+        }
+        // Indexed by the low byte of a character; characters that share one take the smallest
+        // shift.
+        _shifts = new int[256];
+        _backShifts = new int[256];
+        for (int i = 0; i < 256; i += 1) {
+            _shifts[i] = m;
+            _backShifts[i] = m;
+        }
+        for (int i = 0; i < m - 1; i += 1) {
+            _shifts[_literal[i] & 0xFF] = m - 1 - i;
+        }
+        for (int i = m - 1; i > 0; i -= 1) {
+            _backShifts[_literal[i] & 0xFF] = i;
+        }
+        _buffer = new char[BLOCK + Math.max(0, m - 1)];
+        _hashes = TrigramIndex.hashes(pattern);
+    }
+
+    /**
+     * Lets literal searches of three characters or more skip the blocks index rules out, once it
+     * is ready. Regular expressions and replace-all always read the whole document.
+     */
+    public void setIndex(TrigramIndex index) {
+        _index = index;
+    }
+
+    public int getMatchStart() {
+        return _matchStart;
+    }
+
+    public int getMatchEnd() {
+        return _matchEnd;
+    }
+
+    /**
+     * Finds the first match that starts at or after from. An empty match at from is skipped, so
+     * calling this again with the end of the last match moves on.
+     * @return whether there was a match; if so, getMatchStart and getMatchEnd say where
+     */
+    public boolean findNext(Document document, int from) {
+        if (_regex != null) {
+            Matcher matcher = matcher(document);
+            matcher.region(from, document.length());
+            while (matcher.find()) {
+                if (matcher.end() > from) {
+                    return found(matcher.start(), matcher.end());
+                }
+            }
+            return false;
+        }
+        int m = _literal.length;
+        int length = document.length();
+        if (m == 0) {
+            return false;
+        }
+        if (!useIndex()) {
+            return scanForward(document, from, length);
+        }
+        for (int block = _index.getBlockOfOffset(from); block < _index.getBlockCount(); block += 1) {
+            if (_index.mayContain(block, _hashes)) {
+                int start = Math.max(from, _index.getBlockStart(block));
+                int end = Math.min(length, _index.getBlockEnd(block) + m - 1);
+                if (scanForward(document, start, end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the last match that ends at or before from and starts before it.
+     * @return whether there was a match; if so, getMatchStart and getMatchEnd say where
+     */
+    public boolean findPrevious(Document document, int from) {
+        if (_regex != null) {
+            Matcher matcher = matcher(document);
+            // Matches can't be searched for backwards, so a stretch before from is searched
+            // forwards. The stretch doubles each time it has no match, which keeps the text
+            // searched within twice the distance to the match.
+            int start = from;
+            long distance = BLOCK;
+            while (start > 0) {
+                start = (int) Math.max(0, from - distance);
+                distance *= 2;
+                matcher.region(start, from);
+                boolean found = false;
+                while (matcher.find()) {
+                    // Skips an empty match at from, as findNext does.
+                    if (matcher.start() < from) {
+                        found = found(matcher.start(), matcher.end());
+                    }
+                }
+                if (found) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int m = _literal.length;
+        if (m == 0) {
+            return false;
+        }
+        int to = Math.min(document.length(), from);
+        if (!useIndex()) {
+            return scanBackward(document, 0, to);
+        }
+        for (int block = _index.getBlockOfOffset(Math.max(0, to - 1)); block >= 0; block -= 1) {
+            if (_index.mayContain(block, _hashes)) {
+                int start = _index.getBlockStart(block);
+                int end = Math.min(to, _index.getBlockEnd(block) + m - 1);
+                if (start < end && scanBackward(document, start, end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces every match in one pass. In a regular expression search, $n and ${name} in
+     * replacement stand for the groups of each match and a backslash quotes the next character;
+     * otherwise replacement is taken literally.
+     * @return the edit to make, or null if nothing matched
+     */
+    public Replacement replaceAll(Document document, String replacement) {
+        StringBuilder out = new StringBuilder();
+        int first = -1;
+        int last = -1;
+        int count = 0;
+        if (_regex != null) {
+            Matcher matcher = matcher(document);
+            while (matcher.find()) {
+                if (first < 0) {
+                    first = matcher.start();
+                } else {
+                    copy(document, last, matcher.start(), out);
+                }
+                expand(matcher, replacement, out);
+                last = matcher.end();
+                count += 1;
+            }
+        } else if (_literal.length > 0) {
+            int m = _literal.length;
+            int length = document.length();
+            int start = 0;
+            while (start + m <= length) {
+                int end = Math.min(length, start + _buffer.length);
+                document.getChars(start, end, _buffer, 0);
+                int index = indexOf(0, end - start);
+                while (index >= 0) {
+                    int match = start + index;
+                    if (first < 0) {
+                        first = match;
+                    } else if (last >= start) {
+                        out.append(_buffer, last - start, match - last);
+                    } else {
+                        copy(document, last, match, out);
+                    }
+                    out.append(replacement);
+                    last = match + m;
+                    count += 1;
+                    index = indexOf(index + m, end - start);
+                }
+                start = Math.max(end - m + 1, last);
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new Replacement(first, last - first, out.toString(), count);
+    }
+
+    private boolean useIndex() {
+        return _index != null && _hashes != null && _index.isReady();
+    }
+
+    /**
+     * Finds the first occurrence of the literal that lies within [from, to).
+     */
+    private boolean scanForward(Document document, int from, int to) {
+        int m = _literal.length;
+        int start = from;
+        while (start + m <= to) {
+            int end = Math.min(to, start + _buffer.length);
+            document.getChars(start, end, _buffer, 0);
+            int index = indexOf(0, end - start);
+            if (index >= 0) {
+                return found(start + index, start + index + m);
+            }
+            start = end - m + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the last occurrence of the literal that lies within [from, to).
+     */
+    private boolean scanBackward(Document document, int from, int to) {
+        int m = _literal.length;
+        int end = to;
+        while (end - from >= m) {
+            int start = Math.max(from, end - _buffer.length);
+            document.getChars(start, end, _buffer, 0);
+            int index = lastIndexOf(end - start);
+            if (index >= 0) {
+                return found(start + index, start + index + m);
+            }
+            end = start + m - 1;
+        }
+        return false;
+    }
+
+    private boolean found(int start, int end) {
+        _matchStart = start;
+        _matchEnd = end;
+        return true;
+    }
+
+    /**
+     * Horspool search of _buffer[from, length) for the literal.
+     * @return index of the first match, or -1
+     */
+    private int indexOf(int from, int length) {
+        int m = _literal.length;
+        int last = m - 1;
+        int i = from;
+        while (i + m <= length) {
+            int j = last;
+            while (fold(_buffer[i + j]) == _literal[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j -= 1;
+            }
+            i += _shifts[fold(_buffer[i + last]) & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Horspool search of _buffer[0, length) from the right, comparing the literal left to right.
+     * @return index of the last match, or -1
+     */
+    private int lastIndexOf(int length) {
+        int m = _literal.length;
+        int last = m - 1;
+        int i = length - m;
+        while (i >= 0) {
+            int j = 0;
+            while (fold(_buffer[i + j]) == _literal[j]) {
+                if (j == last) {
+                    return i;
+                }
+                j += 1;
+            }
+            i -= _backShifts[fold(_buffer[i]) & 0xFF];
+        }
+        return -1;
+    }
+
+    private char fold(char c) {
+        return _matchCase ? c : Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private Matcher matcher(Document document) {
+        Matcher matcher = _regex.matcher(new BlockText(document));
+        // Lets lookarounds and anchors see past the ends of a region.
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        return matcher;
+    }
+
+    private static void copy(Document document, int start, int end, StringBuilder out) {
+        char[] chars = new char[Math.min(BLOCK, end - start)];
+        while (start < end) {
+            int length = Math.min(chars.length, end - start);
+            document.getChars(start, start + length, chars, 0);
+            out.append(chars, 0, length);
+            start += length;
+        }
+    }
+
+    /**
+     * Appends replacement to out with the group references filled in from matcher.
+     */
+    private static void expand(Matcher matcher, String replacement, StringBuilder out) {
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i);
+            if (c == '\\' && i + 1 < replacement.length()) {
+                out.append(replacement.charAt(i + 1));
+                i += 2;
+            } else if (c == '$' && i + 1 < replacement.length() && replacement.charAt(i + 1) == '{') {
+                int close = replacement.indexOf('}', i);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed group name in " + replacement);
+                }
+                append(out, matcher.group(replacement.substring(i + 2, close)));
+                i = close + 1;
+            } else if (c == '$' && i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1))) {
+                // Takes as many digits as still name a group, like Matcher.appendReplacement.
+                int group = replacement.charAt(i + 1) - '0';
+                i += 2;
+                while (i < replacement.length() && Character.isDigit(replacement.charAt(i))) {
+                    int longer = group * 10 + replacement.charAt(i) - '0';
+                    if (longer > matcher.groupCount()) {
+                        break;
+                    }
+                    group = longer;
+                    i += 1;
+                }
+                append(out, matcher.group(group));
+            } else {
+                out.append(c);
+                i += 1;
+            }
+        }
+    }
+
+    private static void append(StringBuilder out, String group) {
+        if (group != null) {
+            out.append(group);
+        }
+    }
+
+    /**
+     * A document as a CharSequence that reads it a block at a time, so a regular expression
+     * scanning it doesn't walk the piece table for every character.
+     */
+    private static class BlockText implements CharSequence {
+        private final Document _document;
+        private final char[] _block = new char[BLOCK];
+        private int _blockStart;
+        private int _blockLength;
+
+        BlockText(Document document) {
+            _document = document;
+        }
+
+        @Override
+        public int length() {
+            return _document.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            int offset = index - _blockStart;
+            if (offset < 0 || offset >= _blockLength) {
+                _blockStart = index - index % BLOCK;
+                _blockLength = Math.min(BLOCK, _document.length() - _blockStart);
+                _document.getChars(_blockStart, _blockStart + _blockLength, _block, 0);
+                offset = index - _blockStart;
+            }
+            return _block[offset];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return _document.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return _document.toString();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package editor;
+
+/**
+ * Selected range of a document, kept as two offsets: the anchor, where the selection was started,
+ * and the head, which follows the mouse. Either one may come first. The selected text is only
+ * read out of the document when something asks for it.
+ */
+public class Selection {
+
+    private int _anchor;
+    private int _head;
+
+    public void set(int anchor, int head) {
+        _anchor = anchor;
+        _head = head;
+    }
+
+    public void setHead(int head) {
+        _head = head;
+    }
+
+    /**
+     * Collapses the selection to an empty range at offset.
+     */
+    public void clear(int offset) {
+        _anchor = offset;
+        _head = offset;
+    }
+
+    public int getAnchor() {
+        return _anchor;
+    }
+
+    public int getHead() {
+        return _head;
+    }
+
+    public int getStart() {
+        return Math.min(_anchor, _head);
+    }
+
+    public int getEnd() {
+        return Math.max(_anchor, _head);
+    }
+
+    public boolean isEmpty() {
+        return _anchor == _head;
+    }
+
+    /**
+     * Copies the selected characters out of document.
+     */
+    public String getText(Document document) {
+        return document.subSequence(getStart(), getEnd()).toString();
+    }
+}
@@ -0,0 +1,26 @@
+package editor;
+
+/**
+ * Kinds of tokens a lexer can pick out, each drawn in its own color. Colors are plain RGB so that
+ * lexers don't need JavaFX; the renderers turn them into paints once.
+ */
+public enum Style {
+    PLAIN(0x000000),
+    KEYWORD(0x0033b3),
+    KEY(0x871094),
+    STRING(0x067d17),
+    NUMBER(0x1750eb),
+    COMMENT(0x8c8c8c),
+    WARNING(0xb36b00),
+    ERROR(0xc00000);
+
+    private final int _rgb;
+
+    Style(int rgb) {
+        _rgb = rgb;
+    }
+
+    public int getRgb() {
+        return _rgb;
+    }
+}
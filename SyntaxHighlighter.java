@@ -0,0 +1,410 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Token styles of a document, lexed on a background thread and handed to the renderer through a
+ * listener. Lines here are the document's own lines, ended by newlines, not the wrapped lines of
+ * the layout.
+ *
+ * Every line keeps the lexer state it starts in along with its tokens. An edit marks the lines it
+ * touched, and lexing starts again at the first of them with the state that line started in. It
+ * carries on past the edit until a line comes out starting in the same state as before; from there
+ * on the old tokens are still right. Typing inside a block comment therefore re-lexes one line,
+ * while opening one re-lexes up to where it is closed.
+ *
+ * Lexing works on a snapshot, a chunk of lines at a time, and the results are installed on the
+ * thread that edits the document. A chunk lexed from a snapshot the document has moved on from is
+ * thrown away and lexed again. Until a line has been lexed it keeps its old tokens, or none if it
+ * is new.
+ *
+ * The lines of the text the document already holds are found on the background thread too, so
+ * the thread that edits the document never reads all of it. Edits made before they are found are
+ * queued and applied once they are.
+ */
+public class SyntaxHighlighter {
+
+    private static final int CHUNK_LINES = 2048;
+    private static final int CHUNK_CHARS = 256 * 1024;
+    private static final int[] UNKNOWN = new int[] {-1};
+    private static final Style[] STYLES = Style.values();
+
+    /**
+     * Called through the callback executor with the range of the document whose styles changed.
+     */
+    public interface Listener {
+        void stylesChanged(int start, int end);
+    }
+
+    private final Document _document;
+    private final Lexer _lexer;
+    private final Executor _executor;
+    private final Executor _callbacks;
+    private final Listener _listener;
+
+    // Everything below is only touched on the thread that edits the document.
+    private LineIndex _lines;
+    // Per line, the state it starts in followed by its tokens; UNKNOWN before it has been lexed.
+    private final ArrayList<int[]> _tokens;
+    // Pairs of lines to lex from and lines before which lexing can't stop, sorted and disjoint.
+    private final ArrayList<int[]> _pending;
+    // Per edit made before the lines were found, its offset, removed and inserted lengths, and the
+    // lines that start in the inserted text; null once they are found.
+    private ArrayList<int[]> _queuedEdits;
+    private int _length;
+    private int _generation;
+    private boolean _running;
+    private boolean _closed;
+
+    /**
+     * Lexes the whole of document, which may already hold text, and then keeps up with the edits
+     * passed to update(). Everything is plain until the first lines have been lexed.
+     * @param executor runs the lexing, from newExecutor
+     * @param callbacks runs the listener and installs results, on the FX thread in the editor
+     */
+    public SyntaxHighlighter(Document document, Lexer lexer, Executor executor, Executor callbacks, Listener listener) {
+        _document = document;
+        _lexer = lexer;
+        _executor = executor;
+        _callbacks = callbacks;
+        _listener = listener;
+        _lines = new LineIndex();
+        _tokens = new ArrayList<>();
+        _tokens.add(new int[] {0});
+        _pending = new ArrayList<>();
+        _queuedEdits = new ArrayList<>();
+        findLines();
+    }
+
+    /**
+     * @return a single daemon thread to lex on, which every highlighter can share
+     */
+    public static ExecutorService newExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "syntax-highlighter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stops publishing styles, for when the document is no longer on screen.
+     */
+    public void close() {
+        _closed = true;
+    }
+
+    /**
+     * Notes that removed characters at offset were replaced by inserted characters, which the
+     * document already holds, and lexes the lines around them again.
+     */
+    public void update(int offset, int removed, int inserted) {
+        _generation += 1;
+        // Lines that start inside the inserted text, after the edit's three lengths.
+        int[] edit = new int[16];
+        edit[0] = offset;
+        edit[1] = removed;
+        edit[2] = inserted;
+        int size = 3;
+        Document.CharIterator iterator = _document.iterator(offset);
+        for (int i = 0; i < inserted; i += 1) {
+            if (iterator.next() == '\n') {
+                if (size == edit.length) {
+                    edit = Arrays.copyOf(edit, size * 2);
+                }
+                edit[size] = offset + i + 1;
+                size += 1;
+            }
+        }
+        if (_queuedEdits != null) {
+            _queuedEdits.add(Arrays.copyOf(edit, size));
+            return;
+        }
+        apply(edit, size);
+        schedule();
+    }
+
+    /**
+     * Moves the lines and tokens past an edit packed as update() packs it, and marks the lines
+     * around it for lexing.
+     */
+    private void apply(int[] edit, int size) {
+        int offset = edit[0];
+        int removed = edit[1];
+        int delta = edit[2] - removed;
+        int count = size - 3;
+        int[] starts = Arrays.copyOfRange(edit, 3, size);
+        int first = _lines.getLineOfOffset(offset);
+        int last = _lines.getLineOfOffset(offset + removed);
+        _lines.replace(first + 1, last - first, starts, count, delta);
+        _length += delta;
+        if (count == last - first) {
+            for (int line = first + 1; line <= last; line += 1) {
+                _tokens.set(line, UNKNOWN);
+            }
+        } else {
+            _tokens.subList(first + 1, last + 1).clear();
+            _tokens.addAll(first + 1, Collections.nCopies(count, UNKNOWN));
+        }
+        addPending(first, last, first + count + 1);
+    }
+
+    /**
+     * Finds where the lines of what the document holds now start, on the executor, then applies
+     * the edits queued in the meantime and starts lexing.
+     */
+    private void findLines() {
+        final Document.Snapshot snapshot = _document.snapshot();
+        _running = true;
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final LineIndex lines = new LineIndex();
+                int length = snapshot.length();
+                char[] buffer = new char[8192];
+                for (int start = 0; start < length; start += buffer.length) {
+                    int end = Math.min(length, start + buffer.length);
+                    snapshot.getChars(start, end, buffer, 0);
+                    for (int i = 0; i < end - start; i += 1) {
+                        if (buffer[i] == '\n') {
+                            lines.add(start + i + 1);
+                        }
+                    }
+                }
+                _callbacks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        _running = false;
+                        if (!_closed) {
+                            installLines(lines, snapshot.length());
+                            schedule();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void installLines(LineIndex lines, int length) {
+        int lineCount = lines.getLineCount();
+        _lines = lines;
+        _length = length;
+        _tokens.clear();
+        _tokens.add(new int[] {0});
+        _tokens.addAll(Collections.nCopies(lineCount - 1, UNKNOWN));
+        _pending.add(new int[] {0, lineCount});
+        ArrayList<int[]> queued = _queuedEdits;
+        _queuedEdits = null;
+        for (int[] edit : queued) {
+            apply(edit, edit.length);
+        }
+    }
+
+    /**
+     * @return the style of the character at offset
+     */
+    public Style getStyle(int offset) {
+        int line = _lines.getLineOfOffset(offset);
+        int[] tokens = _tokens.get(line);
+        int column = offset - _lines.getLineStart(line);
+        for (int i = 1; i < tokens.length && tokens[i] <= column; i += 3) {
+            if (column < tokens[i + 1]) {
+                return STYLES[tokens[i + 2]];
+            }
+        }
+        return Style.PLAIN;
+    }
+
+    /**
+     * @return end of the run of characters from offset on that have the style of the one at
+     * offset, which is at most the end of its line once the lines have been found
+     */
+    public int getStyleEnd(int offset) {
+        if (_queuedEdits != null) {
+            return _document.length();
+        }
+        int line = _lines.getLineOfOffset(offset);
+        int[] tokens = _tokens.get(line);
+        int lineStart = _lines.getLineStart(line);
+        int lineEnd = line + 1 < _lines.getLineCount() ? _lines.getLineStart(line + 1) : _length;
+        int column = offset - lineStart;
+        // Tokens from before an edit that hasn't been lexed yet may reach past the line.
+        for (int i = 1; i < tokens.length; i += 3) {
+            if (column < tokens[i]) {
+                return Math.min(lineStart + tokens[i], lineEnd);
+            }
+            if (column < tokens[i + 1]) {
+                return Math.min(lineStart + tokens[i + 1], lineEnd);
+            }
+        }
+        return lineEnd;
+    }
+
+    /**
+     * Records that lines from first on need lexing, and that it can't stop before until. Ranges
+     * after the edit are moved by the lines it added or removed, and overlapping ones are merged.
+     */
+    private void addPending(int first, int last, int until) {
+        int shift = until - 1 - last;
+        int from = first;
+        int to = until;
+        ArrayList<int[]> pending = new ArrayList<>();
+        for (int[] range : _pending) {
+            int start = range[0] > last ? range[0] + shift : Math.min(range[0], first);
+            int end = range[1] > last ? range[1] + shift : Math.min(range[1], until);
+            if (end < from || start > to) {
+                pending.add(new int[] {start, end});
+            } else {
+                from = Math.min(from, start);
+                to = Math.max(to, end);
+            }
+        }
+        pending.add(new int[] {from, to});
+        Collections.sort(pending, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return Integer.compare(a[0], b[0]);
+            }
+        });
+        _pending.clear();
+        _pending.addAll(pending);
+    }
+
+    /**
+     * Starts lexing the first pending range, unless lexing is already under way.
+     */
+    private void schedule() {
+        if (_running || _closed || _pending.isEmpty()) {
+            return;
+        }
+        int[] range = _pending.get(0);
+        final int first = range[0];
+        final int until = range[1];
+        final int state = _tokens.get(first)[0];
+        final int generation = _generation;
+        final int offset = _lines.getLineStart(first);
+        final Document.Snapshot snapshot = _document.snapshot();
+        // The states lexing is compared against, as far as one chunk can reach.
+        int lineCount = _lines.getLineCount();
+        final int[] oldStates = new int[Math.min(CHUNK_LINES + 1, lineCount - first)];
+        for (int i = 0; i < oldStates.length; i += 1) {
+            oldStates[i] = _tokens.get(first + i)[0];
+        }
+        _running = true;
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<int[]> lexed = lex(snapshot, offset, first, until, state, oldStates);
+                _callbacks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        _running = false;
+                        if (generation == _generation) {
+                            install(first, lexed);
+                        }
+                        schedule();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Lexes the lines of snapshot from the one at offset, which is line first and starts in state,
+     * up to a chunk or up to the first line from until on whose state comes out as in oldStates.
+     * @return per line lexed, its state and tokens, then one more entry holding only the state the
+     * line after them starts in
+     */
+    private ArrayList<int[]> lex(Document.Snapshot snapshot, int offset, int first, int until, int state,
+                                 int[] oldStates) {
+        ArrayList<int[]> lexed = new ArrayList<>();
+        Lexer.Tokens tokens = new Lexer.Tokens();
+        int length = snapshot.length();
+        char[] buffer = new char[8192];
+        int bufferStart = offset;
+        int bufferEnd = offset;
+        int lineStart = offset;
+        int chars = 0;
+        while (true) {
+            // Finds the end of the line, reading more of the snapshot as needed.
+            int lineEnd = lineStart;
+            while (true) {
+                while (lineEnd < bufferEnd && buffer[lineEnd - bufferStart] != '\n') {
+                    lineEnd += 1;
+                }
+                if (lineEnd < bufferEnd || bufferEnd == length) {
+                    break;
+                }
+                int kept = bufferEnd - lineStart;
+                if (kept * 2 > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                System.arraycopy(buffer, lineStart - bufferStart, buffer, 0, kept);
+                bufferStart = lineStart;
+                int read = Math.min(length, bufferStart + buffer.length) - bufferEnd;
+                snapshot.getChars(bufferEnd, bufferEnd + read, buffer, bufferEnd - bufferStart);
+                bufferEnd += read;
+            }
+            tokens.reset(lineStart - bufferStart);
+            int next = _lexer.lexLine(buffer, lineStart - bufferStart, lineEnd - bufferStart, state, tokens);
+            lexed.add(tokens.toArray(state));
+            chars += lineEnd - lineStart + 1;
+            state = next;
+            int line = first + lexed.size();
+            if (lineEnd == length) {
+                break;
+            }
+            lineStart = lineEnd + 1;
+            if (line >= until && line - first < oldStates.length && oldStates[line - first] == state) {
+                break;
+            }
+            if (lexed.size() >= CHUNK_LINES || chars >= CHUNK_CHARS) {
+                break;
+            }
+        }
+        lexed.add(new int[] {state});
+        return lexed;
+    }
+
+    /**
+     * Takes in lines lexed from line first on, moves the first pending range past them or drops it
+     * if lexing caught up with the old states, and tells the listener.
+     */
+    private void install(int first, ArrayList<int[]> lexed) {
+        int count = lexed.size() - 1;
+        for (int i = 0; i < count; i += 1) {
+            _tokens.set(first + i, lexed.get(i));
+        }
+        int next = first + count;
+        int state = lexed.get(count)[0];
+        int[] range = _pending.get(0);
+        boolean done = next >= _lines.getLineCount()
+                || (next >= range[1] && _tokens.get(next)[0] == state);
+        if (done) {
+            _pending.remove(0);
+        } else {
+            if (_tokens.get(next)[0] != state) {
+                _tokens.set(next, new int[] {state});
+            }
+            range[0] = next;
+            if (_pending.size() > 1 && _pending.get(1)[0] <= next) {
+                range[1] = Math.max(range[1], _pending.get(1)[1]);
+                _pending.remove(1);
+            }
+        }
+        int end = next < _lines.getLineCount() ? _lines.getLineStart(next) : _length;
+        if (!_closed) {
+            _listener.stylesChanged(_lines.getLineStart(first), end);
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package editor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Breaks a document into visual lines for a given wrap width. Lines are kept as the offsets at
+ * which they start, x positions are in pixels from the left edge of the text area, and every
+ * character advances by a whole number of pixels. Line n covers y from n times the line height
+ * up to the next line.
+ *
+ * Nothing here depends on JavaFX: widths come from a FontMetrics, so a layout can be built and
+ * measured without a window.
+ *
+ * Where lines break is up to a LineBreaker, which wraps a run of lines in one pass.
+ *
+ * After an edit, update() re-wraps from the line before the edit and stops as soon as a new line
+ * starts where an old line started, past the edited text. From there on the old layout is still
+ * correct, so the cost of an edit depends on the paragraph around it, not on the document.
+ *
+ * Lines that get measured keep an array of the x position before each of their characters, so
+ * offset to x is a lookup and x to offset is a binary search. The arrays of the most recently
+ * used lines are cached and dropped when their lines are re-wrapped.
+ *
+ * Paragraphs wrap independently of each other, so reflowAll cuts a large document into chunks at
+ * newlines and wraps them in parallel on the common ForkJoinPool, reading from a snapshot. Any
+ * character the metrics haven't seen is measured on the calling thread first.
+ */
+public class TextLayout {
+
+    /**
+     * Lines replaced by an update: oldLineCount lines starting at firstLine became newLineCount
+     * lines.
+     */
+    public static class Damage {
+        private final int _firstLine;
+        private final int _oldLineCount;
+        private final int _newLineCount;
+
+        Damage(int firstLine, int oldLineCount, int newLineCount) {
+            _firstLine = firstLine;
+            _oldLineCount = oldLineCount;
+            _newLineCount = newLineCount;
+        }
+
+        public int getFirstLine() {
+            return _firstLine;
+        }
+
+        public int getOldLineCount() {
+            return _oldLineCount;
+        }
+
+        public int getNewLineCount() {
+            return _newLineCount;
+        }
+
+        public int getLineDelta() {
+            return _newLineCount - _oldLineCount;
+        }
+    }
+
+    private final Document _document;
+    private FontMetrics _metrics;
+    private int _width;
+
+    private final LineIndex _lines;
+
+    private static final int WIDTH_CACHE_SIZE = 512;
+    private static final int PARALLEL_CHUNK = 256 * 1024;
+    private final int[] _cachedLines;
+    private final int[][] _cachedWidths;
+
+    public TextLayout(Document document, FontMetrics metrics, int width) {
+        _document = document;
+        _metrics = metrics;
+        _width = width;
+        _lines = new LineIndex();
+        _cachedLines = new int[WIDTH_CACHE_SIZE];
+        _cachedWidths = new int[WIDTH_CACHE_SIZE][];
+        invalidateWidths(0);
+    }
+
+    public void setWidth(int width) {
+        _width = width;
+    }
+
+    public int getWidth() {
+        return _width;
+    }
+
+    /**
+     * Changes the font. Like setWidth, it takes effect at the next reflowAll.
+     */
+    public void setMetrics(FontMetrics metrics) {
+        _metrics = metrics;
+    }
+
+    public FontMetrics getMetrics() {
+        return _metrics;
+    }
+
+    public int getLineHeight() {
+        return _metrics.getLineHeight();
+    }
+
+    public int getLineCount() {
+        return _lines.getLineCount();
+    }
+
+    public int getLineStart(int line) {
+        return _lines.getLineStart(line);
+    }
+
+    /**
+     * @return offset just past the last character of the line, including its newline if it has one
+     */
+    public int getLineEnd(int line) {
+        return line + 1 < _lines.getLineCount() ? _lines.getLineStart(line + 1) : _document.length();
+    }
+
+    /**
+     * Finds the line a caret at offset is drawn on. An offset where a line wraps belongs to the
+     * line that starts there.
+     */
+    public int getLineOfOffset(int offset) {
+        return _lines.getLineOfOffset(offset);
+    }
+
+    /**
+     * @return x position of a caret placed before the character at offset
+     */
+    public int getX(int offset) {
+        return getX(getLineOfOffset(offset), offset);
+    }
+
+    /**
+     * Measures from the start of line up to offset, which may be the end of the line.
+     */
+    public int getX(int line, int offset) {
+        return getPrefixWidths(line)[offset - _lines.getLineStart(line)];
+    }
+
+    /**
+     * Horizontal extent of the part of [start, end) that lies on line, as {left, right}. A selected
+     * newline is drawn as newlineWidth of extra room at the end of its line.
+     */
+    public int[] getSpan(int line, int start, int end, int newlineWidth) {
+        int lineStart = _lines.getLineStart(line);
+        int from = Math.max(start, lineStart);
+        int to = Math.min(end, getLineEnd(line));
+        int right = 0;
+        if (to > lineStart) {
+            right = getPrefixWidths(line)[to - lineStart];
+            if (_document.charAt(to - 1) == '\n') {
+                right += newlineWidth;
+            }
+        }
+        int left = to <= from ? right : getPrefixWidths(line)[from - lineStart];
+        return new int[] {left, right};
+    }
+
+    /**
+     * Hit test: finds the caret offset closest to a point. Points above the first line map to the
+     * start of the document and points below the last line to its end.
+     */
+    public int hitTest(double x, double y) {
+        int line = (int) Math.floor(y / getLineHeight());
+        if (line < 0) {
+            return 0;
+        } else if (line >= getLineCount()) {
+            return _document.length();
+        }
+        return getOffsetAt(line, x);
+    }
+
+    /**
+     * Hit test: finds the caret offset on line that is closest to x.
+     */
+    public int getOffsetAt(int line, double x) {
+        int start = _lines.getLineStart(line);
+        int end = getLineEnd(line);
+        int lastCaret = end;
+        if (end > start && (_document.charAt(end - 1) == '\n' || line + 1 < _lines.getLineCount())) {
+            lastCaret = end - 1;
+        }
+        // The caret goes before the first character whose middle is right of x.
+        int[] widths = getPrefixWidths(line);
+        int low = 0;
+        int high = lastCaret - start;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (x < (widths[middle] + widths[middle + 1]) / 2.0) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return start + low;
+    }
+
+    /**
+     * @return x of the caret before each character of line, and after its last one
+     */
+    private int[] getPrefixWidths(int line) {
+        int slot = line % WIDTH_CACHE_SIZE;
+        if (_cachedLines[slot] == line) {
+            return _cachedWidths[slot];
+        }
+        int start = _lines.getLineStart(line);
+        int[] widths = new int[getLineEnd(line) - start + 1];
+        Document.CharIterator iterator = _document.iterator(start);
+        for (int i = 1; i < widths.length; i += 1) {
+            widths[i] = widths[i - 1] + advance(iterator.next());
+        }
+        _cachedLines[slot] = line;
+        _cachedWidths[slot] = widths;
+        return widths;
+    }
+
+    /**
+     * Forgets the widths of every line from line on.
+     */
+    private void invalidateWidths(int line) {
+        for (int slot = 0; slot < WIDTH_CACHE_SIZE; slot += 1) {
+            if (_cachedLines[slot] >= line) {
+                _cachedLines[slot] = -1;
+                _cachedWidths[slot] = null;
+            }
+        }
+    }
+
+    /**
+     * Lays out the whole document from scratch.
+     */
+    public Damage reflowAll() {
+        int oldLineCount = _lines.getLineCount();
+        _lines.clear();
+        invalidateWidths(0);
+        int length = _document.length();
+        if (length < 2 * PARALLEL_CHUNK) {
+            LineBreaker breaker = new LineBreaker(_metrics, _width);
+            breaker.reset(_document.iterator(0), 0, length);
+            int start = 0;
+            while (true) {
+                int next = breaker.next();
+                if (!startsLine(next, start, length)) {
+                    break;
+                }
+                _lines.add(next);
+                start = next;
+            }
+            return new Damage(0, oldLineCount, _lines.getLineCount());
+        }
+
+        int chunks = (length + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        int[][] starts = new int[chunks][];
+        int[] counts = new int[chunks];
+        Document.Snapshot snapshot = _document.snapshot();
+        measureAll(snapshot, _metrics);
+        ForkJoinPool.commonPool().invoke(new WrapTask(snapshot, _metrics, _width, 0, chunks, starts, counts));
+        // Stitches the chunks together; their starts are already offsets into the document.
+        int total = 0;
+        for (int chunk = 0; chunk < chunks; chunk += 1) {
+            total += counts[chunk];
+        }
+        int[] all = new int[total + 1];
+        int count = 0;
+        for (int chunk = 0; chunk < chunks; chunk += 1) {
+            System.arraycopy(starts[chunk], 0, all, count, counts[chunk]);
+            count += counts[chunk];
+        }
+        if (_document.charAt(length - 1) == '\n') {
+            all[count] = length;
+            count += 1;
+        }
+        _lines.replace(1, 0, all, count, 0);
+        return new Damage(0, oldLineCount, _lines.getLineCount());
+    }
+
+    /**
+     * Asks the metrics for every character outside Latin-1 once, on the calling thread, before the
+     * wrapping threads start. Metrics that can only measure on the toolkit's thread then have every
+     * width the wrap needs cached, and the threads only look widths up.
+     */
+    private static void measureAll(Document.Snapshot text, FontMetrics metrics) {
+        boolean[] seen = new boolean[Character.MAX_VALUE + 1];
+        char[] chars = new char[PARALLEL_CHUNK];
+        int length = text.length();
+        for (int start = 0; start < length; start += PARALLEL_CHUNK) {
+            int end = Math.min(length, start + PARALLEL_CHUNK);
+            text.getChars(start, end, chars, 0);
+            for (int i = 0; i < end - start; i += 1) {
+                char c = chars[i];
+                if (c >= 256 && !seen[c]) {
+                    seen[c] = true;
+                    metrics.advance(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the layout after removed characters at offset were replaced by inserted characters.
+     * The document must already contain the edit.
+     */
+    public Damage update(int offset, int removed, int inserted) {
+        int length = _document.length();
+        int delta = inserted - removed;
+        int editEnd = offset + inserted;
+        // The line before the edit can change too, since where it wraps depends on the word after
+        // it.
+        int firstLine = Math.max(0, getLineOfOffset(Math.max(0, offset - 1)) - 1);
+
+        int lineCount = _lines.getLineCount();
+        int[] newStarts = new int[16];
+        int newCount = 0;
+        int oldLine = firstLine + 1;
+        int start = _lines.getLineStart(firstLine);
+        LineBreaker breaker = new LineBreaker(_metrics, _width);
+        breaker.reset(_document.iterator(start), start, length);
+        while (true) {
+            int next = breaker.next();
+            if (!startsLine(next, start, length)) {
+                oldLine = lineCount;
+                break;
+            }
+            while (oldLine < lineCount && shifted(_lines.getLineStart(oldLine), offset, removed, delta) < next) {
+                oldLine += 1;
+            }
+            if (next >= editEnd && oldLine < lineCount
+                    && shifted(_lines.getLineStart(oldLine), offset, removed, delta) == next) {
+                break;
+            }
+            if (newCount == newStarts.length) {
+                newStarts = grow(newStarts, newCount * 2);
+            }
+            newStarts[newCount] = next;
+            newCount += 1;
+            start = next;
+        }
+
+        int oldCount = oldLine - firstLine - 1;
+        _lines.replace(firstLine + 1, oldCount, newStarts, newCount, delta);
+        invalidateWidths(firstLine);
+        return new Damage(firstLine, oldCount + 1, newCount + 1);
+    }
+
+    /**
+     * A break at the document length only starts another line if it follows a newline.
+     */
+    private boolean startsLine(int next, int start, int length) {
+        return next < length || (next > start && _document.charAt(next - 1) == '\n');
+    }
+
+    /**
+     * @return width of c; newlines take no room
+     */
+    public int advance(char c) {
+        return c == '\n' ? 0 : _metrics.advance(c);
+    }
+
+    /**
+     * Maps an old line start into the edited document, or -1 if the edit removed it.
+     */
+    private static int shifted(int start, int offset, int removed, int delta) {
+        if (start < offset) {
+            return start;
+        }
+        return start >= offset + removed ? start + delta : -1;
+    }
+
+    /**
+     * @return the first offset at or after offset where a paragraph starts
+     */
+    private static int alignToParagraph(Document.Snapshot text, int offset) {
+        if (offset == 0) {
+            return 0;
+        }
+        int length = text.length();
+        char[] block = new char[4096];
+        int position = offset - 1;
+        while (position < length) {
+            int count = Math.min(block.length, length - position);
+            text.getChars(position, position + count, block, 0);
+            for (int i = 0; i < count; i += 1) {
+                if (block[i] == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += count;
+        }
+        return length;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Wraps chunks [from, to) of text. Each chunk runs from the first paragraph that starts in its
+     * PARALLEL_CHUNK characters to the first one that starts in the next chunk's, so a paragraph
+     * longer than a chunk is wrapped whole by the chunk it starts in.
+     */
+    private static class WrapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Document.Snapshot _text;
+        private final FontMetrics _metrics;
+        private final int _width;
+        private final int _from;
+        private final int _to;
+        private final int[][] _starts;
+        private final int[] _counts;
+
+        WrapTask(Document.Snapshot text, FontMetrics metrics, int width, int from, int to, int[][] starts, int[] counts) {
+            _text = text;
+            _metrics = metrics;
+            _width = width;
+            _from = from;
+            _to = to;
+            _starts = starts;
+            _counts = counts;
+        }
+
+        @Override
+        protected void compute() {
+            if (_to - _from > 1) {
+                int middle = (_from + _to) >>> 1;
+                invokeAll(new WrapTask(_text, _metrics, _width, _from, middle, _starts, _counts),
+                        new WrapTask(_text, _metrics, _width, middle, _to, _starts, _counts));
+                return;
+            }
+            int length = _text.length();
+            int start = alignToParagraph(_text, Math.min(length, _from * PARALLEL_CHUNK));
+            int end = alignToParagraph(_text, (int) Math.min(length, (long) _to * PARALLEL_CHUNK));
+            int[] starts = new int[16];
+            int count = 0;
+            if (start < end) {
+                char[] chars = new char[end - start];
+                _text.getChars(start, end, chars, 0);
+                if (start > 0) {
+                    starts[count] = start;
+                    count += 1;
+                }
+                LineBreaker breaker = new LineBreaker(_metrics, _width);
+                breaker.reset(new ArrayIterator(chars, start, start, end), start, end);
+                while (true) {
+                    int next = breaker.next();
+                    if (next >= end) {
+                        break;
+                    }
+                    if (count == starts.length) {
+                        starts = grow(starts, count * 2);
+                    }
+                    starts[count] = next;
+                    count += 1;
+                }
+            }
+            _starts[_from] = starts;
+            _counts[_from] = count;
+        }
+    }
+
+    /**
+     * Iterates over characters copied out of the document; chars[0] is the character at base.
+     */
+    private static class ArrayIterator implements Document.CharIterator {
+        private final char[] _chars;
+        private final int _base;
+        private final int _end;
+        private int _index;
+
+        ArrayIterator(char[] chars, int base, int index, int end) {
+            _chars = chars;
+            _base = base;
+            _index = index;
+            _end = end;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _index < _end;
+        }
+
+        @Override
+        public char next() {
+            _index += 1;
+            return _chars[_index - 1 - _base];
+        }
+
+        @Override
+        public int getIndex() {
+            return _index;
+        }
+    }
+}
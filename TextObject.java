@@ -1,5 +1,7 @@
 package editor;
 
+import javafx.scene.paint.Color;
+import javafx.scene.paint.Paint;
 import javafx.scene.text.Text;
 
 public class TextObject{
@@ -7,6 +9,7 @@ public class TextObject{
     private Text _text;
     private int _index;
     private int _line;
+    private Paint _fill = Color.BLACK;
 
     public TextObject(int x, int y, String s, int line) {
         _text = new Text(x, y, s);
@@ -62,7 +65,13 @@ public class TextObject{
         _text.setY(y);
     }
 
-    public static double spaceCharWidth() {
-        return new Text(" ").getLayoutBounds().getWidth();
+    /**
+     * Colors the glyph. The Text node is only touched if the color is a different one.
+     */
+    public void setFill(Paint fill) {
+        if (fill != _fill) {
+            _fill = fill;
+            _text.setFill(fill);
+        }
     }
 }
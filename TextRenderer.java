@@ -0,0 +1,59 @@
+package editor;
+
+/**
+ * Draws the part of a laid out document that is inside the window, along with the cursor and the
+ * selection. Positions are in document coordinates; the renderer applies the scroll offset.
+ */
+public interface TextRenderer {
+
+    void setMetrics(GlyphMetrics metrics, int lineHeight);
+
+    void setSize(int width, int height);
+
+    /**
+     * Stretches what is on screen by scale around the top left corner of the window, as a preview
+     * while a new font size is waiting to be laid out. 1 draws normally again.
+     */
+    void setScale(double scale);
+
+    void setScrollY(double scrollY);
+
+    double getScrollY();
+
+    /**
+     * Forgets everything drawn so far, for after the whole document was laid out again.
+     */
+    void reset();
+
+    /**
+     * Called after an edit with the lines the layout re-wrapped.
+     */
+    void linesChanged(TextLayout.Damage damage);
+
+    /**
+     * Colors the text with the styles of highlighter, or draws it all plain if it is null.
+     */
+    void setHighlighter(SyntaxHighlighter highlighter);
+
+    /**
+     * Called when the styles of the characters in [start, end) may have changed.
+     */
+    void stylesChanged(int start, int end);
+
+    void setCursor(double x, double y);
+
+    /**
+     * Shows or hides the cursor without moving it, for blinking.
+     */
+    void setCursorVisible(boolean visible);
+
+    /**
+     * Highlights [start, end); an empty range clears the selection.
+     */
+    void setSelection(int start, int end);
+
+    /**
+     * Brings the screen up to date with everything reported since the last call.
+     */
+    void render();
+}
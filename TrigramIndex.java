@@ -0,0 +1,287 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Which three-character sequences occur in which parts of a document, so a literal search only has
+ * to read the blocks that contain every trigram of its pattern.
+ *
+ * The document is cut into blocks of 8K to 32K characters, whose starts are kept in a LineIndex.
+ * Each block has a bitmap of the hashes of the trigrams that start in it, folded to one case so
+ * case-insensitive searches can use it too. A bitmap can only say that a trigram may be in a
+ * block, so every candidate block still gets searched.
+ *
+ * The first build hashes a snapshot of the document on a background thread. Afterwards an edit
+ * only re-cuts the blocks around it and drops their bitmaps; they are hashed again the next time a
+ * search asks for them. Everything except the build runs on the thread that edits the document.
+ * A build that is no longer wanted is cancelled with close().
+ */
+public class TrigramIndex {
+
+    private static final int BLOCK_CHARS = 16 * 1024;
+    private static final int MIN_BLOCK_CHARS = BLOCK_CHARS / 2;
+    private static final int MAX_BLOCK_CHARS = BLOCK_CHARS * 2;
+    private static final int HASH_BITS = 15;
+    private static final int BLOCK_OVERHEAD = 48;
+    private static final int MAX_PATTERN_TRIGRAMS = 32;
+
+    /**
+     * Called through the executor once the index can be used.
+     */
+    public interface Listener {
+        void indexBuilt(TrigramIndex index);
+    }
+
+    private final Document _document;
+    private final LineIndex _blocks;
+    private final ArrayList<long[]> _bitmaps;
+    private final char[] _buffer;
+
+    private int _length;
+    private ArrayList<int[]> _queuedEdits;
+    private long _buildTime;
+    private Future<?> _build;
+    private volatile boolean _closed;
+
+    public TrigramIndex(Document document) {
+        _document = document;
+        _blocks = new LineIndex();
+        _bitmaps = new ArrayList<>();
+        _buffer = new char[MAX_BLOCK_CHARS + 2];
+    }
+
+    /**
+     * @return a single daemon thread to build on, which every index can share
+     */
+    public static ExecutorService newExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "trigram-index");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Builds the index from what the document holds now on executor. Edits made in the meantime
+     * are queued and applied when the build is handed over through callbacks.
+     */
+    public void start(ExecutorService executor, final Executor callbacks, final Listener listener) {
+        final Document.Snapshot snapshot = _document.snapshot();
+        _queuedEdits = new ArrayList<>();
+        _build = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long begin = System.nanoTime();
+                final LineIndex blocks = new LineIndex();
+                final ArrayList<long[]> bitmaps = new ArrayList<>();
+                char[] buffer = new char[BLOCK_CHARS + 2];
+                int length = snapshot.length();
+                int start = 0;
+                do {
+                    if (_closed) {
+                        return;
+                    }
+                    int end = Math.min(length, start + BLOCK_CHARS);
+                    if (start > 0) {
+                        blocks.add(start);
+                    }
+                    int limit = Math.min(length, end + 2);
+                    snapshot.getChars(start, limit, buffer, 0);
+                    bitmaps.add(hash(buffer, limit - start));
+                    start = end;
+                } while (start < length);
+                final long time = System.nanoTime() - begin;
+                callbacks.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!_closed) {
+                            install(blocks, bitmaps, snapshot.length(), time);
+                            listener.indexBuilt(TrigramIndex.this);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the build if it hasn't finished, for when the index is dropped.
+     */
+    public void close() {
+        _closed = true;
+        if (_build != null) {
+            _build.cancel(false);
+        }
+    }
+
+    public boolean isReady() {
+        return _queuedEdits == null && !_bitmaps.isEmpty();
+    }
+
+    /**
+     * @return time the background build took, in nanoseconds
+     */
+    public long getBuildTime() {
+        return _buildTime;
+    }
+
+    /**
+     * @return rough number of bytes the index holds
+     */
+    public long getMemoryUsage() {
+        return _bitmaps.size() * (BLOCK_OVERHEAD + 4L + (1L << HASH_BITS) / 8) + _buffer.length * 2L;
+    }
+
+    public int getBlockCount() {
+        return _blocks.getLineCount();
+    }
+
+    public int getBlockStart(int block) {
+        return _blocks.getLineStart(block);
+    }
+
+    public int getBlockEnd(int block) {
+        return block + 1 < _blocks.getLineCount() ? _blocks.getLineStart(block + 1) : _length;
+    }
+
+    public int getBlockOfOffset(int offset) {
+        return _blocks.getLineOfOffset(offset);
+    }
+
+    /**
+     * Re-cuts the blocks around an edit where removed characters at offset were replaced by
+     * inserted characters. Their bitmaps are hashed again when a search next needs them.
+     */
+    public void update(int offset, int removed, int inserted) {
+        if (_queuedEdits != null) {
+            _queuedEdits.add(new int[] {offset, removed, inserted});
+            return;
+        }
+        if (_bitmaps.isEmpty()) {
+            return;
+        }
+        int blockCount = _blocks.getLineCount();
+        int delta = inserted - removed;
+        // Trigrams that start up to two characters before the edit reach into it.
+        int first = _blocks.getLineOfOffset(Math.max(0, offset - 2));
+        int last = _blocks.getLineOfOffset(offset + removed);
+        int start = _blocks.getLineStart(first);
+        int end = (last + 1 < blockCount ? _blocks.getLineStart(last + 1) : _length) + delta;
+        // A block that got too short is merged into the one after it.
+        if (end - start < MIN_BLOCK_CHARS && last + 1 < blockCount) {
+            last += 1;
+            end = (last + 1 < blockCount ? _blocks.getLineStart(last + 1) : _length) + delta;
+        }
+        _length += delta;
+        int count = Math.max(1, (end - start + MAX_BLOCK_CHARS - 1) / MAX_BLOCK_CHARS);
+        int[] starts = new int[count - 1];
+        for (int i = 1; i < count; i += 1) {
+            starts[i - 1] = start + (int) ((long) (end - start) * i / count);
+        }
+        _blocks.replace(first + 1, last - first, starts, count - 1, delta);
+        if (count == last - first + 1) {
+            for (int block = first; block <= last; block += 1) {
+                _bitmaps.set(block, null);
+            }
+        } else {
+            _bitmaps.subList(first, last + 1).clear();
+            _bitmaps.addAll(first, Collections.<long[]>nCopies(count, null));
+        }
+    }
+
+    /**
+     * Hashes the trigrams of a pattern, folded the way the bitmaps are. Only the first few are
+     * kept, which is plenty to rule blocks out.
+     * @return the bits to look for, or null if the pattern is too short to have any
+     */
+    public static int[] hashes(CharSequence pattern) {
+        if (pattern.length() < 3) {
+            return null;
+        }
+        int[] hashes = new int[Math.min(MAX_PATTERN_TRIGRAMS, pattern.length() - 2)];
+        for (int i = 0; i < hashes.length; i += 1) {
+            hashes[i] = hash(pattern.charAt(i), pattern.charAt(i + 1), pattern.charAt(i + 2));
+        }
+        return hashes;
+    }
+
+    /**
+     * A match that starts near the end of block has its last trigrams in the blocks after it, so
+     * those are looked at too.
+     * @return false if no string with all of hashes can start in block
+     */
+    public boolean mayContain(int block, int[] hashes) {
+        int blockCount = _blocks.getLineCount();
+        int reach = getBlockEnd(block) + hashes.length - 2;
+        for (int hash : hashes) {
+            boolean found = false;
+            for (int b = block; !found && b < blockCount && (b == block || getBlockStart(b) <= reach); b += 1) {
+                long[] bitmap = getBitmap(b);
+                found = (bitmap[hash >>> 6] & (1L << hash)) != 0;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long[] getBitmap(int block) {
+        long[] bitmap = _bitmaps.get(block);
+        if (bitmap == null) {
+            int start = getBlockStart(block);
+            int limit = Math.min(_length, getBlockEnd(block) + 2);
+            _document.getChars(start, limit, _buffer, 0);
+            bitmap = hash(_buffer, limit - start);
+            _bitmaps.set(block, bitmap);
+        }
+        return bitmap;
+    }
+
+    private void install(LineIndex blocks, ArrayList<long[]> bitmaps, int length, long time) {
+        ArrayList<int[]> queued = _queuedEdits;
+        _queuedEdits = null;
+        _length = length;
+        _buildTime = time;
+        _blocks.clear();
+        for (int block = 1; block < blocks.getLineCount(); block += 1) {
+            _blocks.add(blocks.getLineStart(block));
+        }
+        _bitmaps.clear();
+        _bitmaps.addAll(bitmaps);
+        for (int[] edit : queued) {
+            update(edit[0], edit[1], edit[2]);
+        }
+    }
+
+    /**
+     * Sets the bits of the trigrams that start in chars[0, length - 2), which holds a block and the
+     * two characters after it.
+     */
+    private static long[] hash(char[] chars, int length) {
+        long[] bitmap = new long[(1 << HASH_BITS) / 64];
+        for (int i = 0; i + 2 < length; i += 1) {
+            int hash = hash(chars[i], chars[i + 1], chars[i + 2]);
+            bitmap[hash >>> 6] |= 1L << hash;
+        }
+        return bitmap;
+    }
+
+    private static int hash(char a, char b, char c) {
+        long key = ((long) fold(a) << 32) | ((long) fold(b) << 16) | fold(c);
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - HASH_BITS));
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
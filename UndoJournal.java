@@ -0,0 +1,166 @@
+package editor;
+
+import java.util.ArrayDeque;
+
+/**
+ * Undo and redo history as a list of text replacements. Each entry is the text an edit removed
+ * and the text it inserted at one offset, so undoing a paste or a selection delete is one splice
+ * no matter how long the text is.
+ *
+ * Characters typed one after another are merged into one entry, and so are backspaces, until the
+ * caret moves, a newline is typed, or the kind of edit changes. The history keeps an estimate of
+ * the memory it holds and drops its oldest entries once that goes over the limit.
+ */
+public class UndoJournal {
+
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /**
+     * removed was replaced by inserted at offset.
+     */
+    public static class Edit {
+        private int _offset;
+        private final StringBuilder _removed;
+        private final StringBuilder _inserted;
+        // A run of backspaces keeps its text back to front while it grows, so each one appends.
+        private boolean _backwards;
+
+        Edit(int offset, CharSequence removed, CharSequence inserted) {
+            _offset = offset;
+            _removed = new StringBuilder(removed);
+            _inserted = new StringBuilder(inserted);
+        }
+
+        public int getOffset() {
+            return _offset;
+        }
+
+        public CharSequence getRemoved() {
+            setBackwards(false);
+            return _removed;
+        }
+
+        public CharSequence getInserted() {
+            return _inserted;
+        }
+
+        private long size() {
+            return ENTRY_OVERHEAD + 2L * (_removed.capacity() + _inserted.capacity());
+        }
+
+        private void setBackwards(boolean backwards) {
+            if (backwards != _backwards) {
+                _backwards = backwards;
+                for (int i = 0, j = _removed.length() - 1; i < j; i += 1, j -= 1) {
+                    char c = _removed.charAt(i);
+                    _removed.setCharAt(i, _removed.charAt(j));
+                    _removed.setCharAt(j, c);
+                }
+            }
+        }
+    }
+
+    private final ArrayDeque<Edit> _undo;
+    private final ArrayDeque<Edit> _redo;
+    private final long _maxBytes;
+    private long _bytes;
+    private boolean _open;
+
+    /**
+     * @param maxBytes rough limit on the memory the history may hold
+     */
+    public UndoJournal(long maxBytes) {
+        _undo = new ArrayDeque<>();
+        _redo = new ArrayDeque<>();
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * Records that removed was replaced by inserted at offset. Clears the redo history.
+     */
+    public void record(int offset, CharSequence removed, CharSequence inserted) {
+        if (removed.length() == 0 && inserted.length() == 0) {
+            return;
+        }
+        for (Edit edit : _redo) {
+            _bytes -= edit.size();
+        }
+        _redo.clear();
+
+        Edit last = _undo.peekLast();
+        if (_open && last != null && merge(last, offset, removed, inserted)) {
+            return;
+        }
+        Edit edit = new Edit(offset, removed, inserted);
+        _undo.addLast(edit);
+        _bytes += edit.size();
+        _open = removed.length() + inserted.length() == 1 && !endsLine(inserted);
+        trim();
+    }
+
+    /**
+     * Stops the next edit from being merged into the last one, for when the caret moves.
+     */
+    public void breakCoalescing() {
+        _open = false;
+    }
+
+    /**
+     * @return the edit to revert, or null if there is nothing to undo
+     */
+    public Edit undo() {
+        _open = false;
+        Edit edit = _undo.pollLast();
+        if (edit != null) {
+            _redo.addLast(edit);
+        }
+        return edit;
+    }
+
+    /**
+     * @return the edit to apply again, or null if there is nothing to redo
+     */
+    public Edit redo() {
+        _open = false;
+        Edit edit = _redo.pollLast();
+        if (edit != null) {
+            _undo.addLast(edit);
+        }
+        return edit;
+    }
+
+    /**
+     * Grows last by a typed character right after it, or by a backspace right before it.
+     */
+    private boolean merge(Edit last, int offset, CharSequence removed, CharSequence inserted) {
+        long size = last.size();
+        if (removed.length() == 0 && inserted.length() == 1 && last._removed.length() == 0
+                && offset == last._offset + last._inserted.length()) {
+            last._inserted.append(inserted);
+            _open = !endsLine(inserted);
+        } else if (inserted.length() == 0 && removed.length() == 1 && last._inserted.length() == 0
+                && offset + 1 == last._offset) {
+            last.setBackwards(true);
+            last._removed.append(removed);
+            last._offset = offset;
+        } else {
+            return false;
+        }
+        _bytes += last.size() - size;
+        trim();
+        return true;
+    }
+
+    /**
+     * Drops the oldest entries until the history fits, always keeping the newest one.
+     */
+    private void trim() {
+        while (_bytes > _maxBytes && _undo.size() > 1) {
+            _bytes -= _undo.pollFirst().size();
+        }
+    }
+
+    private static boolean endsLine(CharSequence text) {
+        return text.length() > 0 && text.charAt(text.length() - 1) == '\n';
+    }
+}
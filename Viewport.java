@@ -0,0 +1,381 @@
+package editor;
+
+import javafx.geometry.VPos;
+import javafx.scene.Group;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.transform.Scale;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Keeps glyph nodes only for the lines that are inside the window, plus a few lines of overscan
+ * above and below. Nodes of lines that scroll out are hidden and put back in a pool, and lines
+ * that scroll in take their nodes from the pool, so the scene graph stays the size of one screen
+ * no matter how long the document is.
+ *
+ * This is the scene graph renderer: glyphs, the cursor and the selection are all nodes. Each
+ * materialized line also owns the rectangle that highlights its part of the selection, and a new
+ * selection only touches the rectangles of lines whose selected part changed.
+ *
+ * Glyphs are colored by the styles of a SyntaxHighlighter. When new styles come in, only the
+ * materialized lines they cover are gone over, and only glyphs whose color changed are touched.
+ */
+public class Viewport implements TextRenderer {
+
+    private static final int OVERSCAN = 4;
+    private static final Color[] COLORS = new Color[Style.values().length];
+
+    static {
+        for (Style style : Style.values()) {
+            COLORS[style.ordinal()] = Color.rgb(style.getRgb() >> 16, (style.getRgb() >> 8) & 0xff, style.getRgb() & 0xff);
+        }
+    }
+
+    private final Group _group;
+    private final Group _glyphGroup;
+    private final Group _highlightGroup;
+    private final Rectangle _cursor;
+    private final Scale _scale;
+    private final Document _document;
+    private final TextLayout _layout;
+    private final int _marginWidth;
+    private final int _marginHeight;
+
+    private final ArrayList<Line> _lines;
+    private final ArrayDeque<TextObject> _pool;
+    private final ArrayDeque<Rectangle> _highlightPool;
+    private int _firstLine;
+
+    private GlyphMetrics _metrics;
+    private SyntaxHighlighter _highlighter;
+    private int _lineHeight;
+    private double _scrollY;
+    private int _height;
+    private int _selectionStart;
+    private int _selectionEnd;
+
+    public Viewport(Group group, Document document, TextLayout layout, int marginWidth, int marginHeight) {
+        _group = group;
+        _glyphGroup = new Group();
+        _highlightGroup = new Group();
+        _cursor = new Rectangle(0, 0);
+        _cursor.setWidth(1);
+        _cursor.setFill(Color.BLACK);
+        _group.getChildren().addAll(_highlightGroup, _glyphGroup, _cursor);
+        _scale = new Scale(1, 1);
+        _group.getTransforms().add(_scale);
+        _document = document;
+        _layout = layout;
+        _marginWidth = marginWidth;
+        _marginHeight = marginHeight;
+        _lines = new ArrayList<>();
+        _pool = new ArrayDeque<>();
+        _highlightPool = new ArrayDeque<>();
+    }
+
+    /**
+     * Nodes of one materialized line.
+     */
+    private static final class Line {
+        private final ArrayList<TextObject> _glyphs;
+        private Rectangle _highlight;
+
+        Line(ArrayList<TextObject> glyphs) {
+            _glyphs = glyphs;
+        }
+    }
+
+    @Override
+    public void setMetrics(GlyphMetrics metrics, int lineHeight) {
+        _metrics = metrics;
+        _lineHeight = lineHeight;
+        _cursor.setHeight(lineHeight);
+        releaseAll();
+        for (TextObject glyph : _pool) {
+            glyph.getTextObject().setFont(metrics.getFont());
+        }
+        refresh();
+    }
+
+    @Override
+    public void setSize(int width, int height) {
+        _height = height;
+        refresh();
+    }
+
+    /**
+     * Scales the nodes already on screen; lines the preview uncovers stay blank until the layout
+     * is redone.
+     */
+    @Override
+    public void setScale(double scale) {
+        _scale.setX(scale);
+        _scale.setY(scale);
+        _scale.setPivotY(_scrollY);
+    }
+
+    @Override
+    public void setScrollY(double scrollY) {
+        _scrollY = scrollY;
+        _group.setLayoutY(-scrollY);
+        _scale.setPivotY(scrollY);
+        refresh();
+    }
+
+    @Override
+    public double getScrollY() {
+        return _scrollY;
+    }
+
+    @Override
+    public void setCursor(double x, double y) {
+        _cursor.setX(x);
+        _cursor.setY(y);
+        _cursor.setFill(Color.BLACK);
+    }
+
+    @Override
+    public void setCursorVisible(boolean visible) {
+        _cursor.setFill(visible ? Color.BLACK : Color.WHITE);
+    }
+
+    @Override
+    public void setSelection(int start, int end) {
+        int oldStart = _selectionStart;
+        int oldEnd = _selectionEnd;
+        _selectionStart = start;
+        _selectionEnd = end;
+        for (int i = 0; i < _lines.size(); i += 1) {
+            int line = _firstLine + i;
+            int lineStart = _layout.getLineStart(line);
+            int lineEnd = _layout.getLineEnd(line);
+            if (clip(oldStart, lineStart, lineEnd) != clip(start, lineStart, lineEnd)
+                    || clip(oldEnd, lineStart, lineEnd) != clip(end, lineStart, lineEnd)
+                    || (oldStart < oldEnd) != (start < end)) {
+                highlight(_lines.get(i), line);
+            }
+        }
+    }
+
+    @Override
+    public void render() {
+    }
+
+    /**
+     * Drops every materialized line, for after the whole document was laid out again.
+     */
+    @Override
+    public void reset() {
+        releaseAll();
+        refresh();
+    }
+
+    /**
+     * Rebinds the lines an edit re-wrapped. Materialized lines below them keep their nodes and
+     * only move if the edit changed the number of lines.
+     */
+    @Override
+    public void linesChanged(TextLayout.Damage damage) {
+        int first = damage.getFirstLine();
+        int oldEnd = first + damage.getOldLineCount();
+        int delta = damage.getLineDelta();
+        int lastLine = _firstLine + _lines.size();
+        int newFirst = _firstLine < first ? _firstLine : (_firstLine >= oldEnd ? _firstLine + delta : first);
+        int newLast = lastLine <= first ? lastLine : (lastLine >= oldEnd ? lastLine + delta : first + damage.getNewLineCount());
+
+        ArrayList<Line> lines = new ArrayList<>(Collections.nCopies(Math.max(0, newLast - newFirst), null));
+        for (int i = 0; i < _lines.size(); i += 1) {
+            int line = _firstLine + i;
+            Line nodes = _lines.get(i);
+            if (line >= first && line < oldEnd) {
+                release(nodes);
+            } else if (line < first) {
+                lines.set(line - newFirst, nodes);
+            } else {
+                if (delta != 0) {
+                    moveLine(nodes, line + delta);
+                }
+                lines.set(line + delta - newFirst, nodes);
+            }
+        }
+        _lines.clear();
+        _lines.addAll(lines);
+        _firstLine = newFirst;
+        refresh();
+    }
+
+    @Override
+    public void setHighlighter(SyntaxHighlighter highlighter) {
+        _highlighter = highlighter;
+        stylesChanged(0, _document.length());
+    }
+
+    @Override
+    public void stylesChanged(int start, int end) {
+        for (int i = 0; i < _lines.size(); i += 1) {
+            int line = _firstLine + i;
+            if (_lines.get(i) != null && _layout.getLineStart(line) < end && _layout.getLineEnd(line) >= start) {
+                style(_lines.get(i), line);
+            }
+        }
+    }
+
+    /**
+     * Makes the materialized lines match the lines the window shows.
+     */
+    private void refresh() {
+        if (_lineHeight == 0) {
+            return;
+        }
+        int lineCount = _layout.getLineCount();
+        int from = Math.max(0, (int) (_scrollY / _lineHeight) - OVERSCAN);
+        int to = Math.min(lineCount, (int) ((_scrollY + _height) / _lineHeight) + 1 + OVERSCAN);
+        while (!_lines.isEmpty() && (_firstLine < from || _firstLine >= to)) {
+            release(_lines.remove(0));
+            _firstLine += 1;
+        }
+        while (!_lines.isEmpty() && _firstLine + _lines.size() > to) {
+            release(_lines.remove(_lines.size() - 1));
+        }
+        if (_lines.isEmpty()) {
+            _firstLine = from;
+        }
+        while (_firstLine > from) {
+            _firstLine -= 1;
+            _lines.add(0, null);
+        }
+        while (_firstLine + _lines.size() < to) {
+            _lines.add(null);
+        }
+        for (int i = 0; i < _lines.size(); i += 1) {
+            if (_lines.get(i) == null) {
+                _lines.set(i, bind(_firstLine + i));
+            }
+        }
+    }
+
+    private Line bind(int line) {
+        ArrayList<TextObject> glyphs = new ArrayList<>();
+        int x = _marginWidth;
+        int y = _marginHeight + line * _lineHeight;
+        int end = _layout.getLineEnd(line);
+        Document.CharIterator iterator = _document.iterator(_layout.getLineStart(line));
+        while (iterator.getIndex() < end) {
+            char c = iterator.next();
+            if (c == '\n') {
+                break;
+            }
+            TextObject glyph = obtain();
+            glyph.getTextObject().setText(String.valueOf(c));
+            glyph.setX(x);
+            glyph.setY(y);
+            glyph.setLine(line + 1);
+            glyphs.add(glyph);
+            x += _layout.advance(c);
+        }
+        Line nodes = new Line(glyphs);
+        style(nodes, line);
+        highlight(nodes, line);
+        return nodes;
+    }
+
+    /**
+     * Colors the glyphs of a materialized line by their styles.
+     */
+    private void style(Line nodes, int line) {
+        int offset = _layout.getLineStart(line);
+        int styleEnd = offset;
+        Color color = COLORS[Style.PLAIN.ordinal()];
+        for (TextObject glyph : nodes._glyphs) {
+            if (_highlighter != null && offset >= styleEnd) {
+                color = COLORS[_highlighter.getStyle(offset).ordinal()];
+                styleEnd = _highlighter.getStyleEnd(offset);
+            }
+            glyph.setFill(color);
+            offset += 1;
+        }
+    }
+
+    /**
+     * Sizes the highlight of a line to its part of the selection, or hides it if it has none.
+     */
+    private void highlight(Line nodes, int line) {
+        int lineStart = _layout.getLineStart(line);
+        if (_selectionStart >= _selectionEnd || _selectionEnd < lineStart || _selectionStart >= _layout.getLineEnd(line)) {
+            releaseHighlight(nodes);
+            return;
+        }
+        if (nodes._highlight == null) {
+            nodes._highlight = _highlightPool.poll();
+            if (nodes._highlight == null) {
+                nodes._highlight = new Rectangle();
+                nodes._highlight.setFill(Color.LIGHTBLUE);
+                _highlightGroup.getChildren().add(nodes._highlight);
+            }
+            nodes._highlight.setVisible(true);
+        }
+        int[] span = _layout.getSpan(line, _selectionStart, _selectionEnd, _metrics.advance(' '));
+        nodes._highlight.setX(_marginWidth + span[0]);
+        nodes._highlight.setY(_marginHeight + line * _lineHeight);
+        nodes._highlight.setWidth(span[1] - span[0]);
+        nodes._highlight.setHeight(_lineHeight);
+    }
+
+    private void moveLine(Line nodes, int line) {
+        if (nodes == null) {
+            return;
+        }
+        for (TextObject glyph : nodes._glyphs) {
+            glyph.setY(_marginHeight + line * _lineHeight);
+            glyph.setLine(line + 1);
+        }
+        if (nodes._highlight != null) {
+            nodes._highlight.setY(_marginHeight + line * _lineHeight);
+        }
+    }
+
+    private TextObject obtain() {
+        TextObject glyph = _pool.poll();
+        if (glyph == null) {
+            glyph = new TextObject(0, 0, "", 0);
+            glyph.getTextObject().setTextOrigin(VPos.TOP);
+            glyph.getTextObject().setFont(_metrics.getFont());
+            _glyphGroup.getChildren().add(glyph.getTextObject());
+        }
+        glyph.getTextObject().setVisible(true);
+        return glyph;
+    }
+
+    private void releaseAll() {
+        for (Line nodes : _lines) {
+            release(nodes);
+        }
+        _lines.clear();
+        _firstLine = 0;
+    }
+
+    private void release(Line nodes) {
+        if (nodes == null) {
+            return;
+        }
+        for (TextObject glyph : nodes._glyphs) {
+            glyph.getTextObject().setVisible(false);
+            _pool.push(glyph);
+        }
+        releaseHighlight(nodes);
+    }
+
+    private void releaseHighlight(Line nodes) {
+        if (nodes._highlight != null) {
+            nodes._highlight.setVisible(false);
+            _highlightPool.push(nodes._highlight);
+            nodes._highlight = null;
+        }
+    }
+
+    private static int clip(int offset, int lineStart, int lineEnd) {
+        return Math.max(lineStart, Math.min(offset, lineEnd));
+    }
+}
@@ -0,0 +1,141 @@
+package editor;
+
+/**
+ * YAML: keys, comments, quoted strings, numbers, booleans and nulls, and block scalars. After a
+ * value of | or >, the lines indented deeper than the key belong to the scalar and are colored as
+ * a string; the state is then one more than the indent of the key, and 0 outside a scalar.
+ */
+public class YamlLexer implements Lexer {
+
+    private static final String[] LITERALS = {"true", "false", "yes", "no", "on", "off", "null", "~",
+            "True", "False", "TRUE", "FALSE", "Null", "NULL"};
+
+    @Override
+    public int lexLine(char[] chars, int start, int end, int state, Tokens tokens) {
+        int first = start;
+        while (first < end && chars[first] == ' ') {
+            first += 1;
+        }
+        int indent = first - start;
+        if (state > 0) {
+            if (first == end) {
+                return state;
+            }
+            if (indent >= state) {
+                tokens.add(first, end, Style.STRING);
+                return state;
+            }
+        }
+        if (first == end) {
+            return 0;
+        }
+        if (chars[first] == '#') {
+            tokens.add(first, end, Style.COMMENT);
+            return 0;
+        }
+        if (Lexers.matches(chars, first, Math.min(end, first + 3), "---")
+                || Lexers.matches(chars, first, Math.min(end, first + 3), "...")) {
+            tokens.add(first, first + 3, Style.KEYWORD);
+            return 0;
+        }
+        int i = first;
+        while (i < end && chars[i] == '-' && (i + 1 == end || chars[i + 1] == ' ')) {
+            i += 1;
+            while (i < end && chars[i] == ' ') {
+                i += 1;
+            }
+        }
+        int keyEnd = keyEnd(chars, i, end);
+        if (keyEnd > i) {
+            tokens.add(i, keyEnd, Style.KEY);
+            i = keyEnd + 1;
+        }
+        return value(chars, i, end, indent, tokens);
+    }
+
+    /**
+     * @return end of the key at start, where its colon is, or start if the line has no key there
+     */
+    private static int keyEnd(char[] chars, int start, int end) {
+        int i = start;
+        if (i < end && (chars[i] == '"' || chars[i] == '\'')) {
+            i = Lexers.quotedEnd(chars, i, end, chars[i] == '"');
+            return i < end && chars[i] == ':' && (i + 1 == end || chars[i + 1] == ' ') ? i : start;
+        }
+        while (i < end) {
+            char c = chars[i];
+            if (c == ':' && (i + 1 == end || chars[i + 1] == ' ')) {
+                return i;
+            }
+            if ((c == '#' && i > start && chars[i - 1] == ' ') || c == '[' || c == '{' || c == '"' || c == '\'') {
+                return start;
+            }
+            i += 1;
+        }
+        return start;
+    }
+
+    /**
+     * Colors what follows a key or a list marker.
+     * @return state for the next line
+     */
+    private static int value(char[] chars, int start, int end, int indent, Tokens tokens) {
+        int i = start;
+        while (i < end) {
+            char c = chars[i];
+            if (c == ' ' || c == '\t' || c == ',' || c == '[' || c == ']' || c == '{' || c == '}') {
+                i += 1;
+            } else if (c == '#' && (i == start || chars[i - 1] == ' ')) {
+                tokens.add(i, end, Style.COMMENT);
+                return 0;
+            } else if (c == '"' || c == '\'') {
+                int stringEnd = Lexers.quotedEnd(chars, i, end, c == '"');
+                tokens.add(i, stringEnd, Style.STRING);
+                i = stringEnd;
+            } else if ((c == '|' || c == '>') && onlyCommentAfter(chars, i + 1, end)) {
+                tokens.add(i, i + 1, Style.KEYWORD);
+                value(chars, i + 1, end, indent, tokens);
+                return indent + 1;
+            } else {
+                int scalarEnd = i;
+                while (scalarEnd < end && chars[scalarEnd] != ',' && chars[scalarEnd] != ']' && chars[scalarEnd] != '}'
+                        && !(chars[scalarEnd] == '#' && chars[scalarEnd - 1] == ' ')) {
+                    scalarEnd += 1;
+                }
+                int wordEnd = scalarEnd;
+                while (wordEnd > i && chars[wordEnd - 1] == ' ') {
+                    wordEnd -= 1;
+                }
+                tokens.add(i, wordEnd, scalarStyle(chars, i, wordEnd));
+                i = scalarEnd;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean onlyCommentAfter(char[] chars, int start, int end) {
+        int i = start;
+        while (i < end && (chars[i] == '-' || chars[i] == '+' || (chars[i] >= '0' && chars[i] <= '9'))) {
+            i += 1;
+        }
+        while (i < end && chars[i] == ' ') {
+            i += 1;
+        }
+        return i == end || chars[i] == '#';
+    }
+
+    private static Style scalarStyle(char[] chars, int start, int end) {
+        char c = chars[start];
+        if ((c >= '0' && c <= '9') || ((c == '-' || c == '+' || c == '.') && end > start + 1)) {
+            if (Lexers.numberEnd(chars, start, end) == end) {
+                return Style.NUMBER;
+            }
+        }
+        for (String word : LITERALS) {
+            if (Lexers.matches(chars, start, end, word)) {
+                return Style.KEYWORD;
+            }
+        }
+        return Style.PLAIN;
+    }
+}
@@ -0,0 +1,116 @@
+package editor.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import editor.Document;
+import editor.PieceTable;
+
+/**
+ * Text the benchmarks run on. The synthetic kinds are generated from a fixed seed, so every run and
+ * every fork sees the same characters:
+ *
+ *   prose  - words of 1 to 12 letters, paragraphs of a few hundred characters
+ *   code   - short indented lines, mostly under 80 characters
+ *   long   - one paragraph every 64K characters, the worst case for wrapping
+ *
+ * Anything else is taken as the path of a real file, repeated until it is long enough.
+ */
+public final class Corpus {
+
+    private static final long SEED = 0x5eed;
+
+    private Corpus() {
+    }
+
+    public static char[] generate(String kind, int length) throws IOException {
+        if (kind.equals("prose")) {
+            return prose(length, 400);
+        } else if (kind.equals("long")) {
+            return prose(length, 64 * 1024);
+        } else if (kind.equals("code")) {
+            return code(length);
+        }
+        return repeat(new String(Files.readAllBytes(Paths.get(kind)), StandardCharsets.UTF_8), length);
+    }
+
+    /**
+     * Builds a document around the corpus without copying it.
+     */
+    public static Document document(String kind, int length) throws IOException {
+        char[] chars = generate(kind, length);
+        Document document = new PieceTable();
+        document.append(chars, 0, chars.length);
+        return document;
+    }
+
+    private static char[] prose(int length, int paragraph) {
+        Random random = new Random(SEED);
+        char[] chars = new char[length];
+        int sinceNewline = 0;
+        int i = 0;
+        while (i < length) {
+            int word = 1 + random.nextInt(12);
+            for (int j = 0; j < word && i < length; j += 1) {
+                chars[i] = (char) ('a' + random.nextInt(26));
+                i += 1;
+            }
+            sinceNewline += word + 1;
+            if (i < length) {
+                chars[i] = sinceNewline >= paragraph ? '\n' : ' ';
+                if (chars[i] == '\n') {
+                    sinceNewline = 0;
+                }
+                i += 1;
+            }
+        }
+        return chars;
+    }
+
+    private static char[] code(int length) {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder(length + 128);
+        int depth = 0;
+        while (text.length() < length) {
+            int roll = random.nextInt(10);
+            if (roll == 0 && depth < 6) {
+                indent(text, depth);
+                text.append("if (value").append(random.nextInt(100)).append(" != null) {\n");
+                depth += 1;
+            } else if (roll == 1 && depth > 0) {
+                depth -= 1;
+                indent(text, depth);
+                text.append("}\n");
+            } else if (roll == 2) {
+                text.append('\n');
+            } else {
+                indent(text, depth);
+                text.append("result").append(random.nextInt(1000)).append(" = compute(first, second")
+                        .append(random.nextInt(10)).append(", \"literal\");\n");
+            }
+        }
+        char[] chars = new char[length];
+        text.getChars(0, length, chars, 0);
+        return chars;
+    }
+
+    private static void indent(StringBuilder text, int depth) {
+        for (int i = 0; i < depth; i += 1) {
+            text.append("    ");
+        }
+    }
+
+    private static char[] repeat(String text, int length) {
+        if (text.isEmpty()) {
+            throw new IllegalArgumentException("empty corpus file");
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i += text.length()) {
+            text.getChars(0, Math.min(text.length(), length - i), chars, i);
+        }
+        return chars;
+    }
+}
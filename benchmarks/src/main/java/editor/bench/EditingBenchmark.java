@@ -0,0 +1,117 @@
+package editor.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import editor.Document;
+import editor.FixedWidthFontMetrics;
+import editor.PieceTable;
+import editor.TextLayout;
+import editor.UndoJournal;
+
+/**
+ * One edit as the editor makes it: the document splice, the undo entry and the layout update.
+ * Every benchmark undoes its own edit in the same invocation, so the document keeps its size and
+ * the numbers are for an edit and its reverse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class EditingBenchmark {
+
+    private static final int MB = 1024 * 1024;
+
+    @Param({"1", "10", "100"})
+    public int megabytes;
+
+    @Param({"start", "middle", "end"})
+    public String position;
+
+    @Param({"prose", "code"})
+    public String corpus;
+
+    @Param({"65536"})
+    public int blockLength;
+
+    private char[] _chars;
+    private String _block;
+    private Document _document;
+    private TextLayout _layout;
+    private UndoJournal _undoJournal;
+    private int _offset;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        _chars = Corpus.generate(corpus, megabytes * MB);
+        _block = new String(Corpus.generate(corpus, blockLength));
+    }
+
+    /**
+     * Starts every iteration on an unedited document, so pieces left by the last one don't add up.
+     */
+    @Setup(Level.Iteration)
+    public void load() {
+        _document = new PieceTable();
+        _document.append(_chars, 0, _chars.length);
+        _layout = new TextLayout(_document, new FixedWidthFontMetrics(7, 14), 800);
+        _layout.reflowAll();
+        _undoJournal = new UndoJournal(64L * MB);
+        if (position.equals("start")) {
+            _offset = 0;
+        } else if (position.equals("middle")) {
+            _offset = _chars.length / 2;
+        } else {
+            _offset = _chars.length - blockLength;
+        }
+    }
+
+    /**
+     * A typed character and the backspace that takes it out again.
+     */
+    @Benchmark
+    public void keystroke(Blackhole blackhole) {
+        int offset = position.equals("end") ? _document.length() : _offset;
+        blackhole.consume(replace(offset, 0, "x"));
+        blackhole.consume(replace(offset, 1, ""));
+    }
+
+    @Benchmark
+    public void paste(Blackhole blackhole) {
+        blackhole.consume(replace(_offset, 0, _block));
+        blackhole.consume(replace(_offset, _block.length(), ""));
+    }
+
+    /**
+     * Deletes a selection of blockLength characters, then puts it back.
+     */
+    @Benchmark
+    public void deleteRange(Blackhole blackhole) {
+        CharSequence removed = _document.subSequence(_offset, _offset + blockLength);
+        blackhole.consume(replace(_offset, blockLength, ""));
+        blackhole.consume(replace(_offset, 0, removed));
+    }
+
+    private TextLayout.Damage replace(int offset, int removed, CharSequence text) {
+        _undoJournal.record(offset, _document.subSequence(offset, offset + removed), text);
+        _document.delete(offset, removed);
+        _document.insert(offset, text);
+        return _layout.update(offset, removed, text.length());
+    }
+}
@@ -0,0 +1,136 @@
+package editor.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editor.Document;
+import editor.DocumentLoader;
+import editor.DocumentSaver;
+import editor.PieceTable;
+
+/**
+ * Opening and saving a file, end to end: from start() to loadFinished, and from save() to saved.
+ * Callbacks run on the loader's and saver's own threads instead of the FX thread. The files live
+ * in the temp directory, so the numbers depend on what that is mounted on; a save includes the
+ * fsync.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class IoBenchmark {
+
+    private static final int MB = 1024 * 1024;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({"1", "10", "100"})
+    public int megabytes;
+
+    @Param({"prose"})
+    public String corpus;
+
+    @Param({"UTF-8"})
+    public String charset;
+
+    private Charset _charset;
+    private File _source;
+    private File _target;
+    private Document _document;
+    private DocumentSaver _saver;
+
+    @Setup
+    public void create() throws IOException {
+        _charset = Charset.forName(charset);
+        char[] chars = Corpus.generate(corpus, megabytes * MB);
+        _source = File.createTempFile("bench", ".txt");
+        _target = File.createTempFile("bench", ".txt");
+        Files.write(_source.toPath(), new String(chars).getBytes(_charset));
+        _document = new PieceTable();
+        _document.append(chars, 0, chars.length);
+        _saver = new DocumentSaver(DIRECT);
+    }
+
+    @TearDown
+    public void delete() {
+        _saver.shutdown();
+        _source.delete();
+        _target.delete();
+    }
+
+    @Benchmark
+    public Document load() throws Exception {
+        final Document document = new PieceTable();
+        final CountDownLatch done = new CountDownLatch(1);
+        final IOException[] failure = new IOException[1];
+        new DocumentLoader(_source, _charset, DIRECT, new DocumentLoader.Listener() {
+            @Override
+            public void chunkLoaded(char[] chars, int length) {
+                document.append(chars, 0, length);
+            }
+
+            @Override
+            public void loadFinished() {
+                done.countDown();
+            }
+
+            @Override
+            public void loadFailed(IOException e) {
+                failure[0] = e;
+                done.countDown();
+            }
+        }).start();
+        done.await();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return document;
+    }
+
+    @Benchmark
+    public void save() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final IOException[] failure = new IOException[1];
+        _saver.save(_target, _charset, _document.snapshot(), new DocumentSaver.Listener() {
+            @Override
+            public void saved(File file) {
+                done.countDown();
+            }
+
+            @Override
+            public void saveFailed(File file, IOException e) {
+                failure[0] = e;
+                done.countDown();
+            }
+        });
+        done.await();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package editor.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import editor.Document;
+import editor.FixedWidthFontMetrics;
+import editor.TextLayout;
+
+/**
+ * Wrapping the whole document, as on a resize or font change, and the lookups the editor makes
+ * between layouts: a hit test for every mouse event and arrow key (findNearestText), and a caret
+ * x position for every cursor move.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class LayoutBenchmark {
+
+    private static final int MB = 1024 * 1024;
+    private static final int POINTS = 4096;
+
+    @Param({"1", "10", "100"})
+    public int megabytes;
+
+    @Param({"400", "800", "1600"})
+    public int width;
+
+    @Param({"prose", "code", "long"})
+    public String corpus;
+
+    private Document _document;
+    private TextLayout _layout;
+    private double[] _xs;
+    private double[] _ys;
+    private int[] _offsets;
+    private int _next;
+
+    @Setup
+    public void load() throws IOException {
+        _document = Corpus.document(corpus, megabytes * MB);
+        _layout = new TextLayout(_document, new FixedWidthFontMetrics(7, 14), width);
+        _layout.reflowAll();
+
+        Random random = new Random(42);
+        _xs = new double[POINTS];
+        _ys = new double[POINTS];
+        _offsets = new int[POINTS];
+        double height = (double) _layout.getLineCount() * _layout.getLineHeight();
+        for (int i = 0; i < POINTS; i += 1) {
+            _xs[i] = random.nextDouble() * width;
+            _ys[i] = random.nextDouble() * height;
+            _offsets[i] = random.nextInt(_document.length() + 1);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TextLayout.Damage reflowAll() {
+        return _layout.reflowAll();
+    }
+
+    /**
+     * What findNearestText does for a mouse press at a random point of the document.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int findNearestText() {
+        int i = _next;
+        _next = (i + 1) % POINTS;
+        return _layout.hitTest(_xs[i], _ys[i]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int caretX() {
+        int i = _next;
+        _next = (i + 1) % POINTS;
+        return _layout.getX(_offsets[i]);
+    }
+}